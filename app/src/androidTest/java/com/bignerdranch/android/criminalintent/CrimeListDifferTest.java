@@ -0,0 +1,165 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link CrimeListDiffer#diff} by applying the operations it returns
+ * to a plain list, the way RecyclerView would, and comparing the result
+ * with the list diffed against.
+ */
+public class CrimeListDifferTest extends TestCase {
+    // stands in for a crime inserted by the diff; its id is checked separately
+    private static final long INSERTED = -1;
+
+    public void testIdenticalListsHaveNoOps() {
+        List<Long> crimes = ids(1, 2, 3, 4);
+        assertEquals(0, CrimeListDiffer.diff(snapshot(crimes, null), snapshot(crimes, null)).length);
+    }
+
+    public void testRemovals() {
+        check(ids(1, 2, 3, 4, 5, 6), ids(2, 3, 6), null);
+    }
+
+    public void testInserts() {
+        check(ids(1, 2, 3), ids(7, 1, 8, 9, 2, 3, 10), null);
+    }
+
+    public void testMoves() {
+        check(ids(1, 2, 3, 4, 5), ids(5, 3, 1, 2, 4), null);
+    }
+
+    public void testRemovalsMovesAndInsertsTogether() {
+        check(ids(1, 2, 3, 4, 5, 6, 7, 8), ids(9, 8, 2, 10, 5, 4, 11, 1), null);
+    }
+
+    public void testChanges() {
+        check(ids(1, 2, 3, 4), ids(4, 2, 5, 1), ids(2, 5, 1));
+    }
+
+    public void testToAndFromEmpty() {
+        check(ids(), ids(1, 2, 3), null);
+        check(ids(1, 2, 3), ids(), null);
+    }
+
+    public void testRandomEdits() {
+        Random random = new Random(1);
+        for (int test = 0; test < 5000; test++) {
+            int size = random.nextInt(30);
+            long nextId = 1;
+            List<Long> before = new ArrayList<Long>();
+            for (int i = 0; i < size; i++) {
+                before.add(nextId++);
+            }
+
+            List<Long> after = new ArrayList<Long>(before);
+            int edits = random.nextInt(8);
+            for (int e = 0; e < edits; e++) {
+                int kind = random.nextInt(3);
+                if (kind == 0 && !after.isEmpty()) {
+                    after.remove(random.nextInt(after.size()));
+                } else if (kind == 1) {
+                    after.add(random.nextInt(after.size() + 1), nextId++);
+                } else if (!after.isEmpty()) {
+                    Long moved = after.remove(random.nextInt(after.size()));
+                    after.add(random.nextInt(after.size() + 1), moved);
+                }
+            }
+            if (random.nextInt(5) == 0)
+                Collections.shuffle(after, random);
+
+            List<Long> changed = new ArrayList<Long>();
+            for (Long id : after) {
+                if (random.nextInt(5) == 0)
+                    changed.add(id);
+            }
+            check(before, after, changed);
+        }
+    }
+
+    /**
+     * Diff before against after, where the crimes in changed have a new
+     * version, and check the ops turn before into after.
+     */
+    private static void check(List<Long> before, List<Long> after, List<Long> changed) {
+        int[] ops = CrimeListDiffer.diff(snapshot(before, null), snapshot(after, changed));
+        String message = before + " -> " + after + ": " + Arrays.toString(ops);
+
+        List<Long> list = new ArrayList<Long>(before);
+        Set<Long> reportedChanged = new HashSet<Long>();
+        boolean changing = false;
+        for (int i = 0; i < ops.length; i += 3) {
+            int op = ops[i];
+            int position = ops[i + 1];
+            int countOrTo = ops[i + 2];
+            if (op == CrimeListDiffer.OP_CHANGE) {
+                changing = true;
+                for (int k = 0; k < countOrTo; k++) {
+                    reportedChanged.add(list.get(position + k));
+                }
+                continue;
+            }
+            // changes are reported last, against the final positions
+            assertFalse(message, changing);
+            if (op == CrimeListDiffer.OP_REMOVE) {
+                for (int k = 0; k < countOrTo; k++) {
+                    list.remove(position);
+                }
+            } else if (op == CrimeListDiffer.OP_MOVE) {
+                list.add(countOrTo, list.remove(position));
+            } else if (op == CrimeListDiffer.OP_INSERT) {
+                for (int k = 0; k < countOrTo; k++) {
+                    list.add(position + k, INSERTED);
+                }
+            } else {
+                fail("unknown op " + op + " in " + message);
+            }
+        }
+
+        assertEquals(message, after.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == INSERTED) {
+                assertFalse(message, before.contains(after.get(i)));
+            } else {
+                assertEquals(message, after.get(i), list.get(i));
+            }
+        }
+
+        // only surviving crimes can be changed; new ones are inserted
+        Set<Long> expectedChanged = new HashSet<Long>();
+        if (changed != null) {
+            expectedChanged.addAll(changed);
+            expectedChanged.retainAll(before);
+        }
+        assertEquals(message, expectedChanged, reportedChanged);
+    }
+
+    private static List<Long> ids(long... ids) {
+        List<Long> list = new ArrayList<Long>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static CrimeListDiffer.Snapshot snapshot(List<Long> ids, List<Long> changed) {
+        long[] mostSigBits = new long[ids.size()];
+        long[] leastSigBits = new long[ids.size()];
+        int[] versions = new int[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            long id = ids.get(i);
+            // spread the ids out, like random UUIDs
+            mostSigBits[i] = id * 0x9E3779B97F4A7C15L + 7;
+            leastSigBits[i] = Long.rotateLeft(id * 0xC2B2AE3D27D4EB4FL, 17);
+            versions[i] = changed != null && changed.contains(id) ? 1 : 0;
+        }
+        return new CrimeListDiffer.Snapshot(mostSigBits, leastSigBits, versions);
+    }
+}
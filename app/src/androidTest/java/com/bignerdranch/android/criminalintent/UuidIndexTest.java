@@ -0,0 +1,97 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link UuidIndex} against a {@link HashMap} holding the same
+ * entries.
+ */
+public class UuidIndexTest extends TestCase {
+
+    public void testPutReplacesIndex() {
+        UuidIndex index = new UuidIndex();
+        assertEquals(-1, index.get(1, 2));
+
+        index.put(1, 2, 5);
+        index.put(1, 2, 9);
+        assertEquals(9, index.get(1, 2));
+        assertEquals(1, index.size());
+
+        // keys differing in only one half are different keys
+        assertEquals(-1, index.get(1, 3));
+        assertEquals(-1, index.get(2, 2));
+    }
+
+    public void testRemove() {
+        UuidIndex index = new UuidIndex();
+        index.put(0, 0, 3);
+        assertEquals(-1, index.remove(0, 1));
+        assertEquals(3, index.remove(0, 0));
+        assertEquals(-1, index.remove(0, 0));
+        assertEquals(0, index.size());
+    }
+
+    public void testGrowth() {
+        UuidIndex index = new UuidIndex();
+        List<UUID> ids = new ArrayList<UUID>();
+        for (int i = 0; i < 1000; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            index.put(id.getMostSignificantBits(), id.getLeastSignificantBits(), i);
+        }
+        assertEquals(1000, index.size());
+        for (int i = 0; i < ids.size(); i++) {
+            UUID id = ids.get(i);
+            assertEquals(i, index.get(id.getMostSignificantBits(), id.getLeastSignificantBits()));
+        }
+    }
+
+    public void testClear() {
+        UuidIndex index = new UuidIndex();
+        index.put(1, 1, 1);
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(-1, index.get(1, 1));
+        index.put(1, 1, 2);
+        assertEquals(2, index.get(1, 1));
+    }
+
+    public void testRandomOperations() {
+        Random random = new Random(1);
+        for (int test = 0; test < 100; test++) {
+            // a small key range in a small table makes long probe chains
+            UuidIndex index = new UuidIndex(4);
+            Map<UUID, Integer> model = new HashMap<UUID, Integer>();
+            int range = 1 + random.nextInt(40);
+            for (int op = 0; op < 400; op++) {
+                UUID id = new UUID(random.nextInt(range), random.nextInt(3));
+                long msb = id.getMostSignificantBits();
+                long lsb = id.getLeastSignificantBits();
+                if (random.nextInt(3) == 0) {
+                    Integer removed = model.remove(id);
+                    assertEquals(removed != null ? removed : -1, index.remove(msb, lsb));
+                } else {
+                    int value = random.nextInt(1000);
+                    model.put(id, value);
+                    index.put(msb, lsb, value);
+                }
+
+                assertEquals(model.size(), index.size());
+                for (long m = 0; m < range; m++) {
+                    for (long l = 0; l < 3; l++) {
+                        Integer expected = model.get(new UUID(m, l));
+                        assertEquals(id + " then " + m + "/" + l,
+                                expected != null ? expected : -1, index.get(m, l));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Keeps bitmaps nobody is using any more, so that decoding can draw into
+ * them rather than allocating new ones.
+ *
+ * Bitmaps are bucketed by how many bytes they take. On KitKat and up any
+ * bitmap at least as big as the one wanted can be reconfigured and reused;
+ * before that only a bitmap of exactly the wanted size will do. The pool
+ * holds at most a budget of bytes, letting the longest unused bitmaps go
+ * past that.
+ *
+ * Only put bitmaps in the pool that nothing else will draw or read again.
+ * Safe to use from any thread.
+ */
+public class BitmapPool {
+    // don't hand out a bitmap more than this many times bigger than asked for
+    private static final int MAX_OVERSIZE = 4;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+    // every pooled bitmap, least recently pooled first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+    private final long mMaxBytes;
+    private long mBytes;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Put a bitmap in the pool. The caller mustn't use it afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || mOrder.contains(bitmap))
+            return;
+        int size = getSize(bitmap);
+        if (size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Take a mutable bitmap of width by height out of the pool, if there
+     * is one that can be made into it. Its contents are undefined.
+     * @return the bitmap, or null if a new one has to be allocated
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int wanted = width * height * getBytesPerPixel(config);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Map.Entry<Integer, ArrayList<Bitmap>> entry = mBuckets.ceilingEntry(wanted);
+            if (entry == null || entry.getKey() > wanted * MAX_OVERSIZE)
+                return null;
+            Bitmap bitmap = take(entry.getKey(), entry.getValue(), entry.getValue().size() - 1);
+            reconfigure(bitmap, width, height, config);
+            return bitmap;
+        }
+
+        ArrayList<Bitmap> bucket = mBuckets.get(wanted);
+        if (bucket == null)
+            return null;
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Bitmap bitmap = bucket.get(i);
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height &&
+                    bitmap.getConfig() == config) {
+                return take(wanted, bucket, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Let go of pooled bitmaps when the system is short of memory.
+     * @param level a level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    public synchronized long getSizeInBytes() {
+        return mBytes;
+    }
+
+    private Bitmap take(int size, ArrayList<Bitmap> bucket, int index) {
+        Bitmap bitmap = bucket.remove(index);
+        if (bucket.isEmpty())
+            mBuckets.remove(size);
+        mOrder.remove(bitmap);
+        mBytes -= size;
+        return bitmap;
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Bitmap> i = mOrder.iterator();
+        while (mBytes > maxBytes && i.hasNext()) {
+            Bitmap bitmap = i.next();
+            i.remove();
+            int size = getSize(bitmap);
+            ArrayList<Bitmap> bucket = mBuckets.get(size);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty())
+                mBuckets.remove(size);
+            mBytes -= size;
+            bitmap.recycle();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return bitmap.getAllocationByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8)
+            return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        return 4;
+    }
+}
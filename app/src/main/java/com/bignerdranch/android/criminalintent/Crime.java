@@ -1,10 +1,16 @@
 package com.bignerdranch.android.criminalintent;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Date;
 import java.util.UUID;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 
 public class Crime {
 
@@ -14,6 +20,11 @@ public class Crime {
     private static final String JSON_SOLVED = "solved";
     private static final String JSON_PHOTO = "photo";
     private static final String JSON_SUSPECT = "suspect";
+
+    private static final int FLAG_SOLVED = 1;
+    private static final int FLAG_HAS_TITLE = 1 << 1;
+    private static final int FLAG_HAS_PHOTO = 1 << 2;
+    private static final int FLAG_HAS_SUSPECT = 1 << 3;
     
     private UUID mId;
     private String mTitle;
@@ -21,33 +32,146 @@ public class Crime {
     private boolean mSolved;
     private Photo mPhoto;
     private String mSuspect;
+    // true when a setter has changed something since the last save
+    private boolean mDirty;
+    // bumped by every change, so views can tell whether they're showing the latest
+    private int mVersion;
     
     public Crime() {
         mId = UUID.randomUUID();
         mDate = new Date();
     }
 
-    public Crime(JSONObject json) throws JSONException {
-        mId = UUID.fromString(json.getString(JSON_ID));
-        mTitle = json.getString(JSON_TITLE);
-        mSolved = json.getBoolean(JSON_SOLVED);
-        mDate = new Date(json.getLong(JSON_DATE));
-        if (json.has(JSON_PHOTO))
-            mPhoto = new Photo(json.getJSONObject(JSON_PHOTO));
-        if (json.has(JSON_SUSPECT))
-            mSuspect = json.getString(JSON_SUSPECT);
+    /**
+     * a copy of c, so it can be saved on another thread while c is edited
+     */
+    public Crime(Crime c) {
+        mId = c.mId;
+        mTitle = c.mTitle;
+        // Date is mutable, so don't share it
+        mDate = new Date(c.mDate.getTime());
+        mSolved = c.mSolved;
+        mPhoto = c.mPhoto;
+        mSuspect = c.mSuspect;
+        mDirty = c.mDirty;
+        mVersion = c.mVersion;
+    }
+
+    /** read a Crime from the next object in a JSON stream */
+    public Crime(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals(JSON_ID)) {
+                mId = UUID.fromString(reader.nextString());
+            } else if (name.equals(JSON_TITLE)) {
+                mTitle = reader.nextString();
+            } else if (name.equals(JSON_SOLVED)) {
+                mSolved = reader.nextBoolean();
+            } else if (name.equals(JSON_DATE)) {
+                mDate = new Date(reader.nextLong());
+            } else if (name.equals(JSON_PHOTO)) {
+                mPhoto = new Photo(reader);
+            } else if (name.equals(JSON_SUSPECT)) {
+                mSuspect = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (mId == null)
+            throw new IOException("Crime is missing its " + JSON_ID);
+        if (mDate == null)
+            mDate = new Date();
     }
 
-    public JSONObject toJSON() throws JSONException {
-        JSONObject json = new JSONObject();
-        json.put(JSON_ID, mId.toString());
-        json.put(JSON_TITLE, mTitle);
-        json.put(JSON_SOLVED, mSolved);
-        json.put(JSON_DATE, mDate.getTime());
-        if (mPhoto != null)
-            json.put(JSON_PHOTO, mPhoto.toJSON());
-        json.put(JSON_SUSPECT, mSuspect);
-        return json;
+    /** read a Crime from a record written by {@link #writeBinary(DataOutput)} */
+    public Crime(DataInput in) throws IOException {
+        mId = new UUID(in.readLong(), in.readLong());
+        int flags = in.readUnsignedByte();
+        mSolved = (flags & FLAG_SOLVED) != 0;
+        mDate = new Date(CrimeBinarySerializer.readZigZagVarLong(in));
+        if ((flags & FLAG_HAS_TITLE) != 0)
+            mTitle = CrimeBinarySerializer.readString(in);
+        if ((flags & FLAG_HAS_PHOTO) != 0)
+            mPhoto = new Photo(CrimeBinarySerializer.readString(in));
+        if ((flags & FLAG_HAS_SUSPECT) != 0)
+            mSuspect = CrimeBinarySerializer.readString(in);
+    }
+
+    /** read a Crime from the current row of a {@link CrimeDatabaseHelper} query */
+    public Crime(Cursor cursor) {
+        mId = new UUID(
+                cursor.getLong(cursor.getColumnIndexOrThrow(CrimeDatabaseHelper.COLUMN_ID_MSB)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(CrimeDatabaseHelper.COLUMN_ID_LSB)));
+        mDate = new Date(cursor.getLong(cursor.getColumnIndexOrThrow(CrimeDatabaseHelper.COLUMN_DATE)));
+        mSolved = cursor.getInt(cursor.getColumnIndexOrThrow(CrimeDatabaseHelper.COLUMN_SOLVED)) != 0;
+        mTitle = getStringOrNull(cursor, CrimeDatabaseHelper.COLUMN_TITLE);
+        String photo = getStringOrNull(cursor, CrimeDatabaseHelper.COLUMN_PHOTO);
+        if (photo != null)
+            mPhoto = new Photo(photo);
+        mSuspect = getStringOrNull(cursor, CrimeDatabaseHelper.COLUMN_SUSPECT);
+    }
+
+    private static String getStringOrNull(Cursor cursor, String column) {
+        int index = cursor.getColumnIndexOrThrow(column);
+        return cursor.isNull(index) ? null : cursor.getString(index);
+    }
+
+    /** write this Crime as a row for {@link CrimeDatabaseHelper} */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(CrimeDatabaseHelper.COLUMN_ID_MSB, mId.getMostSignificantBits());
+        values.put(CrimeDatabaseHelper.COLUMN_ID_LSB, mId.getLeastSignificantBits());
+        values.put(CrimeDatabaseHelper.COLUMN_DATE, mDate.getTime());
+        values.put(CrimeDatabaseHelper.COLUMN_SOLVED, mSolved ? 1 : 0);
+        values.put(CrimeDatabaseHelper.COLUMN_TITLE, mTitle);
+        values.put(CrimeDatabaseHelper.COLUMN_PHOTO, mPhoto != null ? mPhoto.getFilename() : null);
+        values.put(CrimeDatabaseHelper.COLUMN_SUSPECT, mSuspect);
+        return values;
+    }
+
+    /** write this Crime as a record in the format of {@link CrimeBinarySerializer} */
+    public void writeBinary(DataOutput out) throws IOException {
+        int flags = 0;
+        if (mSolved)
+            flags |= FLAG_SOLVED;
+        if (mTitle != null)
+            flags |= FLAG_HAS_TITLE;
+        if (mPhoto != null && mPhoto.getFilename() != null)
+            flags |= FLAG_HAS_PHOTO;
+        if (mSuspect != null)
+            flags |= FLAG_HAS_SUSPECT;
+
+        out.writeLong(mId.getMostSignificantBits());
+        out.writeLong(mId.getLeastSignificantBits());
+        out.writeByte(flags);
+        CrimeBinarySerializer.writeZigZagVarLong(out, mDate.getTime());
+        if ((flags & FLAG_HAS_TITLE) != 0)
+            CrimeBinarySerializer.writeString(out, mTitle);
+        if ((flags & FLAG_HAS_PHOTO) != 0)
+            CrimeBinarySerializer.writeString(out, mPhoto.getFilename());
+        if ((flags & FLAG_HAS_SUSPECT) != 0)
+            CrimeBinarySerializer.writeString(out, mSuspect);
+    }
+
+    /** write this Crime as the next object in a JSON stream */
+    public void writeJSON(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(JSON_ID).value(mId.toString());
+        writer.name(JSON_TITLE).value(mTitle);
+        writer.name(JSON_SOLVED).value(mSolved);
+        writer.name(JSON_DATE).value(mDate.getTime());
+        if (mPhoto != null) {
+            writer.name(JSON_PHOTO);
+            mPhoto.writeJSON(writer);
+        }
+        if (mSuspect != null)
+            writer.name(JSON_SUSPECT).value(mSuspect);
+        writer.endObject();
     }
 
     @Override
@@ -60,7 +184,10 @@ public class Crime {
     }
 
     public void setTitle(String title) {
-        mTitle = title;
+        if (!equal(mTitle, title)) {
+            mTitle = title;
+            changed();
+        }
     }
 
     public UUID getId() {
@@ -72,7 +199,10 @@ public class Crime {
     }
 
     public void setSolved(boolean solved) {
-        mSolved = solved;
+        if (mSolved != solved) {
+            mSolved = solved;
+            changed();
+        }
     }
 
     public Date getDate() {
@@ -80,7 +210,10 @@ public class Crime {
     }
 
     public void setDate(Date date) {
-        mDate = date;
+        if (!equal(mDate, date)) {
+            mDate = date;
+            changed();
+        }
     }
     
     public Photo getPhoto() {
@@ -88,7 +221,10 @@ public class Crime {
     }
 
     public void setPhoto(Photo p) {
-        mPhoto = p;
+        if (!equal(mPhoto, p)) {
+            mPhoto = p;
+            changed();
+        }
     }
 
     public String getSuspect() {
@@ -96,6 +232,38 @@ public class Crime {
     }
 
     public void setSuspect(String suspect) {
-        mSuspect = suspect;
+        if (!equal(mSuspect, suspect)) {
+            mSuspect = suspect;
+            changed();
+        }
+    }
+
+    /**
+     * @return true if a setter has changed this crime since it was
+     * created, loaded or last marked clean
+     */
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    public void markClean() {
+        mDirty = false;
+    }
+
+    /**
+     * @return a count of the changes made to this crime since it was
+     * created or loaded
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    private void changed() {
+        mDirty = true;
+        mVersion++;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 }
@@ -0,0 +1,174 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.content.Context;
+
+/**
+ * Saves crimes in a compact, versioned binary format:
+ *
+ * <pre>
+ * file:   magic (int) | version (byte) | record* | index entry* | trailer
+ * record: id (two longs) | flags (byte) | date (zigzag varint) |
+ *         title? | photo filename? | suspect?
+ * </pre>
+ *
+ * Strings are a varint byte length followed by UTF-8 bytes. The flags
+ * byte holds the solved state and which of the optional strings follow.
+ * The index and trailer are described in {@link MappedCrimeFile}; they
+ * let a load map the file and decode crimes only as they're used.
+ *
+ * Version 1 files, with a varint count after the version and no index,
+ * are still read, eagerly.
+ */
+public class CrimeBinarySerializer implements CrimeSerializer {
+    private static final int MAGIC = 0x4352494d; // "CRIM"
+    private static final int VERSION = 2;
+    private static final int VERSION_UNINDEXED = 1;
+
+    private Context mContext;
+    private String mFilename;
+
+    public CrimeBinarySerializer(Context c, String f) {
+        mContext = c;
+        mFilename = f;
+    }
+
+    public List<Crime> loadCrimes() throws IOException {
+        DataInputStream in = null;
+        int version;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(mFilename)));
+            if (in.readInt() != MAGIC)
+                throw new IOException(mFilename + " is not a crime file");
+            version = in.readUnsignedByte();
+            if (version == VERSION_UNINDEXED)
+                return readUnindexed(in);
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+            return new ArrayList<Crime>();
+        } finally {
+            if (in != null)
+                in.close();
+        }
+        if (version != VERSION)
+            throw new IOException("Unsupported crime file version " + version);
+        return new LazyCrimeList(MappedCrimeFile.open(mContext.getFileStreamPath(mFilename)));
+    }
+
+    private static ArrayList<Crime> readUnindexed(DataInput in) throws IOException {
+        int count = (int)readVarLong(in);
+        ArrayList<Crime> crimes = new ArrayList<Crime>(count);
+        for (int i = 0; i < count; i++) {
+            crimes.add(new Crime(in));
+        }
+        return crimes;
+    }
+
+    public void saveCrimes(List<Crime> crimes) throws IOException {
+        // write to a temporary file and swap it in, so a crash
+        // mid-save leaves the old file intact
+        File file = mContext.getFileStreamPath(mFilename);
+        File tempFile = mContext.getFileStreamPath(mFilename + ".tmp");
+        // crimes that were never loaded are copied without decoding them
+        LazyCrimeList lazyCrimes = crimes instanceof LazyCrimeList ? (LazyCrimeList)crimes : null;
+        int count = crimes.size();
+        int[] offsets = new int[count];
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            for (int i = 0; i < count; i++) {
+                offsets[i] = out.size();
+                if (lazyCrimes != null) {
+                    lazyCrimes.writeRecord(i, out);
+                } else {
+                    crimes.get(i).writeBinary(out);
+                }
+            }
+
+            int indexOffset = out.size();
+            for (int i = 0; i < count; i++) {
+                if (lazyCrimes != null) {
+                    out.writeLong(lazyCrimes.getIdMostSignificantBits(i));
+                    out.writeLong(lazyCrimes.getIdLeastSignificantBits(i));
+                } else {
+                    UUID id = crimes.get(i).getId();
+                    out.writeLong(id.getMostSignificantBits());
+                    out.writeLong(id.getLeastSignificantBits());
+                }
+                out.writeInt(offsets[i]);
+            }
+            out.writeInt(count);
+            out.writeInt(indexOffset);
+        } finally {
+            if (out != null)
+                out.close();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("Could not replace " + file);
+    }
+
+    public boolean exists() {
+        return mContext.getFileStreamPath(mFilename).exists();
+    }
+
+    public void delete() {
+        mContext.deleteFile(mFilename);
+    }
+
+    /** write an unsigned LEB128 varint: 7 bits per byte, high bit set on all but the last */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** zigzag encoding keeps small negative values small, e.g. dates before 1970 */
+    static void writeZigZagVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readZigZagVarLong(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[(int)readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -1,6 +1,5 @@
 package com.bignerdranch.android.criminalintent;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
@@ -8,7 +7,6 @@ import java.util.UUID;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.Fragment;
-import android.content.Context;
 import android.content.Intent;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
@@ -41,35 +39,13 @@ public class CrimeCameraFragment extends Fragment {
         public void onPictureTaken(byte[] data, Camera camera) {
             // create a filename
             String filename = UUID.randomUUID().toString() + ".jpg";
-            // save the jpeg data to disk
-            FileOutputStream os = null;
-            boolean success = true;
-            try {
-                os = getActivity().openFileOutput(filename, Context.MODE_PRIVATE);
-                os.write(data);
-            } catch (Exception e) {
-                Log.e(TAG, "Error writing to file " + filename, e);
-                success = false;
-            } finally {
-                try {
-                    if (os != null)
-                        os.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error closing file " + filename, e);
-                    success = false;
-                } 
-            }
-            
-            if (success) {
-                // set the photo filename on the result intent
-                if (success) {
-                    Intent i = new Intent();
-                    i.putExtra(EXTRA_PHOTO_FILENAME, filename);
-                    getActivity().setResult(Activity.RESULT_OK, i);
-                } else {
-                    getActivity().setResult(Activity.RESULT_CANCELED);
-                }
-            }
+            // save the jpeg data to disk in the background, so we can finish now
+            PhotoWriter.get(getActivity()).write(filename, data);
+
+            // set the photo filename on the result intent
+            Intent i = new Intent();
+            i.putExtra(EXTRA_PHOTO_FILENAME, filename);
+            getActivity().setResult(Activity.RESULT_OK, i);
             getActivity().finish();
         }
     };
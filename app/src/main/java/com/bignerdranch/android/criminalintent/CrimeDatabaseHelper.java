@@ -0,0 +1,233 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.UUID;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+/**
+ * Keeps crimes in a SQLite table, one row per crime, in the order they
+ * were added. Ids are stored as two integer columns so lookups by id use
+ * an index and never parse strings. Date and solved are indexed too.
+ *
+ * Crimes are loaded through {@link #loadRecords()}, which reads every id
+ * up front but decodes crimes a page of rows at a time as they're used.
+ * Changes are written in batches, each in a single transaction.
+ */
+public class CrimeDatabaseHelper extends SQLiteOpenHelper {
+    private static final String DB_NAME = "crimes.sqlite";
+    private static final int VERSION = 1;
+
+    private static final String TABLE_CRIMES = "crimes";
+    static final String COLUMN_ROW_ID = "_id";
+    static final String COLUMN_ID_MSB = "id_msb";
+    static final String COLUMN_ID_LSB = "id_lsb";
+    static final String COLUMN_DATE = "date";
+    static final String COLUMN_SOLVED = "solved";
+    static final String COLUMN_TITLE = "title";
+    static final String COLUMN_PHOTO = "photo";
+    static final String COLUMN_SUSPECT = "suspect";
+
+    private static final String WHERE_ID = COLUMN_ID_MSB + " = ? AND " + COLUMN_ID_LSB + " = ?";
+
+    public CrimeDatabaseHelper(Context context) {
+        super(context, DB_NAME, null, VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // let the main thread read pages while a save is writing
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("create table " + TABLE_CRIMES + " ("
+                + COLUMN_ROW_ID + " integer primary key autoincrement, "
+                + COLUMN_ID_MSB + " integer not null, "
+                + COLUMN_ID_LSB + " integer not null, "
+                + COLUMN_DATE + " integer not null, "
+                + COLUMN_SOLVED + " integer not null, "
+                + COLUMN_TITLE + " text, "
+                + COLUMN_PHOTO + " text, "
+                + COLUMN_SUSPECT + " text)");
+        db.execSQL("create unique index crimes_id on " + TABLE_CRIMES
+                + " (" + COLUMN_ID_MSB + ", " + COLUMN_ID_LSB + ")");
+        db.execSQL("create index crimes_date on " + TABLE_CRIMES + " (" + COLUMN_DATE + ")");
+        db.execSQL("create index crimes_solved on " + TABLE_CRIMES + " (" + COLUMN_SOLVED + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // there is only one version so far
+    }
+
+    public long getCrimeCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_CRIMES);
+    }
+
+    /**
+     * @return every crime, in the order they were added. Only the ids are
+     * read now; crimes are read from any thread as they're needed.
+     */
+    public CrimeRecords loadRecords() {
+        Cursor cursor = getReadableDatabase().query(TABLE_CRIMES,
+                new String[] { COLUMN_ROW_ID, COLUMN_ID_MSB, COLUMN_ID_LSB },
+                null, null, null, null, COLUMN_ROW_ID + " asc");
+        try {
+            int count = cursor.getCount();
+            long[] rowIds = new long[count];
+            long[] mostSigBits = new long[count];
+            long[] leastSigBits = new long[count];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                rowIds[i] = cursor.getLong(0);
+                mostSigBits[i] = cursor.getLong(1);
+                leastSigBits[i] = cursor.getLong(2);
+            }
+            return new RowRecords(rowIds, mostSigBits, leastSigBits);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** add crimes, in order, in a single transaction */
+    public void insertCrimes(Collection<Crime> crimes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Crime c : crimes) {
+                db.insertOrThrow(TABLE_CRIMES, null, c.toContentValues());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Write a batch of changes in a single transaction: either all of
+     * them are saved or none are.
+     * @param puts rows for crimes that were added or changed, from
+     *             {@link Crime#toContentValues()}
+     * @param deletes ids of crimes that were deleted
+     */
+    public void writeChanges(Collection<ContentValues> puts, Collection<UUID> deletes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : puts) {
+                String[] idArgs = new String[] {
+                        values.getAsString(COLUMN_ID_MSB), values.getAsString(COLUMN_ID_LSB) };
+                if (db.update(TABLE_CRIMES, values, WHERE_ID, idArgs) == 0)
+                    db.insertOrThrow(TABLE_CRIMES, null, values);
+            }
+            for (UUID id : deletes) {
+                db.delete(TABLE_CRIMES, WHERE_ID, idArgs(id));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String[] idArgs(UUID id) {
+        return new String[] {
+                Long.toString(id.getMostSignificantBits()),
+                Long.toString(id.getLeastSignificantBits()) };
+    }
+
+    /**
+     * Crime rows, addressed by their position when loaded. Decoding one
+     * crime decodes the rest of its page too, with one query, so the list
+     * scrolling past them costs a query per page rather than per row.
+     * Rows added or deleted since loading are simply never asked for.
+     * Crimes that are handed out are forgotten here; the list keeps them.
+     */
+    private class RowRecords implements CrimeRecords {
+        private static final int PAGE_SIZE = 32;
+
+        private final long[] mRowIds;
+        private final long[] mMostSigBits;
+        private final long[] mLeastSigBits;
+        // crimes from the last page read that haven't been handed out yet
+        private final Crime[] mPage = new Crime[PAGE_SIZE];
+        private int mPageStart;
+        private int mLastRecord = -1;
+
+        public RowRecords(long[] rowIds, long[] mostSigBits, long[] leastSigBits) {
+            mRowIds = rowIds;
+            mMostSigBits = mostSigBits;
+            mLeastSigBits = leastSigBits;
+        }
+
+        public int getCount() {
+            return mRowIds.length;
+        }
+
+        public long getMostSignificantBits(int record) {
+            return mMostSigBits[record];
+        }
+
+        public long getLeastSignificantBits(int record) {
+            return mLeastSigBits[record];
+        }
+
+        public synchronized Crime readCrime(int record) throws IOException {
+            // page in the direction the reads are moving
+            boolean backwards = record < mLastRecord;
+            mLastRecord = record;
+            Crime crime = takeFromPage(record);
+            if (crime != null)
+                return crime;
+
+            readPage(backwards ? Math.max(0, record - PAGE_SIZE + 1) : record);
+            crime = takeFromPage(record);
+            if (crime == null)
+                throw new IOException("Crime row " + mRowIds[record] + " is missing");
+            return crime;
+        }
+
+        private Crime takeFromPage(int record) {
+            int slot = record - mPageStart;
+            if (slot < 0 || slot >= PAGE_SIZE)
+                return null;
+            Crime crime = mPage[slot];
+            mPage[slot] = null;
+            return crime;
+        }
+
+        private void readPage(int start) {
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                mPage[i] = null;
+            }
+            mPageStart = start;
+            int end = Math.min(start + PAGE_SIZE, mRowIds.length);
+
+            Cursor cursor = getReadableDatabase().query(TABLE_CRIMES, null,
+                    COLUMN_ROW_ID + " between ? and ?",
+                    new String[] { Long.toString(mRowIds[start]), Long.toString(mRowIds[end - 1]) },
+                    null, null, COLUMN_ROW_ID + " asc");
+            try {
+                int rowIdColumn = cursor.getColumnIndexOrThrow(COLUMN_ROW_ID);
+                int record = start;
+                while (cursor.moveToNext()) {
+                    // rows deleted since loading leave gaps to skip over
+                    long rowId = cursor.getLong(rowIdColumn);
+                    while (record < end && mRowIds[record] < rowId)
+                        record++;
+                    if (record == end)
+                        break;
+                    if (mRowIds[record] == rowId)
+                        mPage[record - start] = new Crime(cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
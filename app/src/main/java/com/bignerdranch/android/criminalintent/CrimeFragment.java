@@ -6,7 +6,6 @@ import android.app.FragmentManager;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract;
@@ -45,6 +44,14 @@ public class CrimeFragment extends BaseFragment {
     ImageView mPhotoView;
     Button mSuspectButton;
 
+    private PhotoWriter.Listener mPhotoWriteListener = new PhotoWriter.Listener() {
+        public void onPhotoWriteFailed(String filename) {
+            Photo p = mCrime.getPhoto();
+            if (p != null && filename.equals(p.getFilename()))
+                showPhoto();
+        }
+    };
+
     public static CrimeFragment newInstance(UUID crimeId) {
         Bundle args = new Bundle();
         args.putSerializable(EXTRA_CRIME_ID, crimeId);
@@ -175,24 +182,41 @@ public class CrimeFragment extends BaseFragment {
     private void showPhoto() {
         // (re)set the image button's image based on our photo
         Photo p = mCrime.getPhoto();
-        BitmapDrawable b = null;
+        if (p != null && PhotoWriter.get(getActivity()).hasFailed(p.getFilename())) {
+            // the camera's photo never made it to disk
+            mCrime.setPhoto(null);
+            p = null;
+        }
         if (p != null) {
             String path = getActivity()
                 .getFileStreamPath(p.getFilename()).getAbsolutePath();
-            b = PictureUtils.getScaledDrawable(getActivity(), path);
+            // decoded in the background, so paging through crimes stays smooth
+            PhotoLoader.get(getActivity()).load(path, mPhotoView);
+        } else {
+            PhotoLoader.get(getActivity()).cancel(mPhotoView);
+            PictureUtils.cleanImageView(mPhotoView);
         }
-        mPhotoView.setImageDrawable(b);
     }
 
     @Override
     public void onStop() {
         super.onStop();
+        PhotoWriter.get(getActivity()).removeListener(mPhotoWriteListener);
+        PhotoLoader.get(getActivity()).cancel(mPhotoView);
         PictureUtils.cleanImageView(mPhotoView);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // the pager destroys the views of crimes swiped far enough away
+        PhotoLoader.get(getActivity()).cancel(mPhotoView);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
+        PhotoWriter.get(getActivity()).addListener(mPhotoWriteListener);
         showPhoto();
     }
     
@@ -257,7 +281,7 @@ public class CrimeFragment extends BaseFragment {
     @Override
     public void onPause() {
         super.onPause();
-        CrimeLab.get(getActivity()).saveCrimes();
+        CrimeLab.get(getActivity()).updateCrime(mCrime);
     }
 
     @Override
@@ -0,0 +1,193 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.UUID;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+/**
+ * An append-only log of changes to the crimes, one JSON record per line.
+ *
+ * Each change costs one small append rather than a rewrite of every
+ * crime. On load the journal is replayed on top of the last snapshot.
+ * A record torn by a crash mid-append can only be the last one, and
+ * replay stops there. Any other record that can't be read is logged and
+ * skipped, so one bad record doesn't cost the changes after it.
+ *
+ * A journal isn't thread safe; use it from one thread at a time.
+ */
+public class CrimeJournal {
+    private static final String TAG = "CrimeJournal";
+    private static final String JSON_OP = "op";
+    private static final String JSON_CRIME = "crime";
+    private static final String JSON_ID = "id";
+    private static final String OP_PUT = "put";
+    private static final String OP_DELETE = "delete";
+
+    public interface Listener {
+        /** a crime was added or changed */
+        void onPut(Crime c);
+        /** a crime was deleted */
+        void onDelete(UUID id);
+    }
+
+    private Context mContext;
+    private String mFilename;
+    private int mRecordCount;
+    private boolean mTornTail;
+
+    public CrimeJournal(Context c, String f) {
+        mContext = c;
+        mFilename = f;
+    }
+
+    /**
+     * Build the record for a crime being added or changed. Records capture
+     * the crime as it is now, so they can be built on the main thread and
+     * appended later from another one.
+     */
+    public static String putRecord(Crime c) throws IOException {
+        StringWriter record = new StringWriter();
+        JsonWriter writer = new JsonWriter(record);
+        writer.beginObject();
+        writer.name(JSON_OP).value(OP_PUT);
+        writer.name(JSON_CRIME);
+        c.writeJSON(writer);
+        writer.endObject();
+        writer.close();
+        return record.toString();
+    }
+
+    /** build the record for a crime being deleted */
+    public static String deleteRecord(UUID id) throws IOException {
+        StringWriter record = new StringWriter();
+        JsonWriter writer = new JsonWriter(record);
+        writer.beginObject();
+        writer.name(JSON_OP).value(OP_DELETE);
+        writer.name(JSON_ID).value(id.toString());
+        writer.endObject();
+        writer.close();
+        return record.toString();
+    }
+
+    /** append records, in order, with a single write */
+    public void append(List<String> records) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (String record : records) {
+            lines.append(record).append('\n');
+        }
+
+        OutputStream out = null;
+        try {
+            out = mContext.openFileOutput(mFilename, Context.MODE_APPEND);
+            out.write(lines.toString().getBytes("UTF-8"));
+        } finally {
+            if (out != null)
+                out.close();
+        }
+        mRecordCount += records.size();
+    }
+
+    /**
+     * Replays every readable record in order. An unreadable last record is
+     * taken to be torn by a crash; unreadable records before it are
+     * skipped.
+     * @return the number of records in the journal, skipped ones included
+     */
+    public int replay(Listener listener) throws IOException {
+        mRecordCount = 0;
+        mTornTail = false;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    mContext.openFileInput(mFilename), "UTF-8"));
+            String line = reader.readLine();
+            while (line != null) {
+                // read ahead, to tell a torn last record from a bad one
+                String next = reader.readLine();
+                Exception error = null;
+                try {
+                    replayRecord(line, listener);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // JsonReader and UUID report malformed input unchecked
+                    error = e;
+                }
+                if (error != null && next == null) {
+                    mTornTail = true;
+                    break;
+                }
+                if (error != null)
+                    Log.e(TAG, "Skipping unreadable journal record: " + line, error);
+                mRecordCount++;
+                line = next;
+            }
+        } catch (FileNotFoundException e) {
+            // no changes since the last snapshot
+        } finally {
+            if (reader != null)
+                reader.close();
+        }
+        return mRecordCount;
+    }
+
+    private void replayRecord(String line, Listener listener) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(line));
+        String op = null;
+        Crime crime = null;
+        UUID id = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(JSON_OP)) {
+                op = reader.nextString();
+            } else if (name.equals(JSON_CRIME)) {
+                crime = new Crime(reader);
+            } else if (name.equals(JSON_ID)) {
+                id = UUID.fromString(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (OP_PUT.equals(op) && crime != null) {
+            listener.onPut(crime);
+        } else if (OP_DELETE.equals(op) && id != null) {
+            listener.onDelete(id);
+        } else {
+            throw new IOException("Unreadable journal record");
+        }
+    }
+
+    /** throw away every record; call once a snapshot includes them */
+    public void reset() {
+        mContext.deleteFile(mFilename);
+        mRecordCount = 0;
+        mTornTail = false;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return true if the last replay hit a torn record. Appending after
+     * one would glue the new record onto it, so snapshot and reset first.
+     */
+    public boolean hasTornTail() {
+        return mTornTail;
+    }
+}
@@ -1,32 +1,200 @@
 package com.bignerdranch.android.criminalintent;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
 import android.util.Log;
 
 public class CrimeLab {
     private static final String TAG = "CrimeLab";
-    private static final String FILENAME = "crimes.json";
+    private static final String JSON_FILENAME = "crimes.json";
+    private static final String BINARY_FILENAME = "crimes.dat";
+    // binary snapshots are several times smaller and faster than JSON.
+    // Existing JSON snapshots are migrated the first time they're loaded.
+    private static final boolean USE_BINARY_FORMAT = true;
+    private static final String JOURNAL_FILENAME = "crimes.journal";
+    // past this many records, fold the journal into a fresh snapshot
+    private static final int MAX_JOURNAL_RECORDS = 256;
+    // Keep crimes in SQLite instead of snapshot and journal files. Rows are
+    // read a page at a time as they're used and each batch of changes is one
+    // transaction, so no save rewrites or holds every crime. The files are
+    // migrated into the database the first time it's opened.
+    private static final boolean USE_DATABASE = false;
+    // changes arriving within this window are written together
+    private static final long SAVE_DELAY_MILLIS = 500;
+    // failed database writes are retried after a delay that doubles up to this
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
 
-    private ArrayList<Crime> mCrimes;
-    private CriminalIntentJSONSerializer mSerializer;
+    // crimes from a binary snapshot are only decoded once they're used
+    private LazyCrimeList mCrimes;
+    private UuidIndex mIndex;
+    private CrimeSerializer mSerializer;
+    // a snapshot in an older format, deleted once the crimes are saved in the new one
+    private CrimeSerializer mMigrateFrom;
+    private CrimeJournal mJournal;
+    // null when crimes are kept in files
+    private CrimeDatabaseHelper mDatabase;
+
+    // Saves run here, in order, so they never block the main thread.
+    // Only this thread touches mJournal and mSerializer after loading.
+    private ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor();
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private LinkedHashMap<UUID, Crime> mPendingPuts = new LinkedHashMap<UUID, Crime>();
+    // in order, but a set, so checking it while requeueing stays cheap
+    private LinkedHashSet<UUID> mPendingDeletes = new LinkedHashSet<UUID>();
+    private boolean mSnapshotPending;
+    // bumped by every change to the crimes, so saves can tell when there is nothing new
+    private int mModCount;
+    private int mSnapshotModCount;
+    private int mJournaledSinceSnapshot;
+    // 0 unless database writes are failing
+    private long mRetryDelayMillis;
+    // set on the save thread if moving the files into the database failed
+    private boolean mMigrationFailed;
+    private Runnable mWritePending = new Runnable() {
+        public void run() {
+            writePending();
+        }
+    };
 
     private static CrimeLab sCrimeLab;
     private Context mAppContext;
 
     private CrimeLab(Context appContext) {
         mAppContext = appContext;
-        mSerializer = new CriminalIntentJSONSerializer(mAppContext, FILENAME);
+        if (USE_DATABASE) {
+            mDatabase = new CrimeDatabaseHelper(mAppContext);
+            loadDatabase();
+        } else {
+            loadFiles();
+        }
+    }
+
+    private void loadFiles() {
+        CrimeSerializer jsonSerializer = new CriminalIntentJSONSerializer(mAppContext, JSON_FILENAME);
+        if (USE_BINARY_FORMAT) {
+            mSerializer = new CrimeBinarySerializer(mAppContext, BINARY_FILENAME);
+            if (!mSerializer.exists() && jsonSerializer.exists())
+                mMigrateFrom = jsonSerializer;
+        } else {
+            mSerializer = jsonSerializer;
+        }
+        mJournal = new CrimeJournal(mAppContext, JOURNAL_FILENAME);
 
         try {
-            mCrimes = mSerializer.loadCrimes();
+            List<Crime> crimes;
+            if (mMigrateFrom != null) {
+                crimes = mMigrateFrom.loadCrimes();
+            } else {
+                crimes = mSerializer.loadCrimes();
+            }
+            mCrimes = crimes instanceof LazyCrimeList
+                    ? (LazyCrimeList)crimes : new LazyCrimeList(crimes);
         } catch (Exception e) {
-            mCrimes = new ArrayList<Crime>();
+            mCrimes = new LazyCrimeList();
             Log.e(TAG, "Error loading crimes: ", e);
         }
+        rebuildIndex();
+
+        try {
+            mJournal.replay(new CrimeJournal.Listener() {
+                public void onPut(Crime c) {
+                    putCrime(c);
+                }
+
+                public void onDelete(UUID id) {
+                    removeCrime(id);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error replaying crime journal: ", e);
+        }
+        mJournaledSinceSnapshot = mJournal.getRecordCount();
+        if (mMigrateFrom != null || mJournal.hasTornTail()
+                || mJournaledSinceSnapshot >= MAX_JOURNAL_RECORDS) {
+            // the files on disk are out of date even though the crimes aren't
+            mModCount++;
+            saveCrimes();
+        }
+    }
+
+    private void loadDatabase() {
+        try {
+            if (mDatabase.getCrimeCount() == 0) {
+                migrateFilesToDatabase();
+            } else {
+                mCrimes = new LazyCrimeList(mDatabase.loadRecords());
+                rebuildIndex();
+            }
+        } catch (Exception e) {
+            // carry on with the files rather than lose the crimes in them
+            Log.e(TAG, "Error loading crimes from the database, using files: ", e);
+            mDatabase = null;
+            loadFiles();
+        }
+    }
+
+    private void migrateFilesToDatabase() {
+        final CrimeDatabaseHelper database = mDatabase;
+        // load into memory as if there were no database
+        mDatabase = null;
+        loadFiles();
+        mHandler.removeCallbacks(mWritePending);
+        mSnapshotPending = false;
+
+        // copy the crimes into the database in the background, ahead of any
+        // changes; the files are kept until it's done
+        final LazyCrimeList crimes = mCrimes.snapshot();
+        final CrimeSerializer migrateFrom = mMigrateFrom;
+        mMigrateFrom = null;
+        mDatabase = database;
+        mSaveExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    database.insertCrimes(crimes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error moving crimes to the database, using files: ", e);
+                    // leave the database empty, so the files are moved next time
+                    mMigrationFailed = true;
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            fallBackToFiles(migrateFrom);
+                        }
+                    });
+                    return;
+                }
+                mSerializer.delete();
+                if (migrateFrom != null)
+                    migrateFrom.delete();
+                mJournal.reset();
+            }
+        });
+    }
+
+    /**
+     * Keep the crimes in files after all. Changes the database dropped are
+     * still in memory, so a full snapshot saves them.
+     */
+    private void fallBackToFiles(CrimeSerializer migrateFrom) {
+        mDatabase = null;
+        if (mMigrateFrom == null)
+            mMigrateFrom = migrateFrom;
+        mRetryDelayMillis = 0;
+        mModCount++;
+        saveCrimes();
     }
 
     public static CrimeLab get(Context c) {
@@ -37,36 +205,340 @@ public class CrimeLab {
     }
 
     public Crime getCrime(UUID id) {
-        for (Crime c : mCrimes) {
-            if (c.getId().equals(id))
-                return c;
-        }
-        return null;
+        int index = indexOf(id);
+        return index < 0 ? null : mCrimes.get(index);
+    }
+
+    /**
+     * @return The crime's position in {@link #getCrimes()}, or -1 if there is none.
+     */
+    public int indexOf(UUID id) {
+        if (id == null)
+            return -1;
+        return mIndex.get(id.getMostSignificantBits(), id.getLeastSignificantBits());
     }
     
     public void addCrime(Crime c) {
         mCrimes.add(c);
-        saveCrimes();
+        indexCrime(mCrimes.size() - 1);
+        c.markClean();
+        mModCount++;
+        journalPut(c);
+    }
+
+    /**
+     * Persist changes made to a crime's fields. Does nothing if
+     * the crime hasn't changed since it was last persisted.
+     */
+    public void updateCrime(Crime c) {
+        int index = indexOf(c.getId());
+        if (!c.isDirty() || index < 0)
+            return;
+        // the crime's saved record is out of date now, so keep it in memory
+        mCrimes.set(index, c);
+        c.markClean();
+        mModCount++;
+        journalPut(c);
+    }
+
+    /**
+     * @return a count that changes whenever crimes are added, deleted or updated
+     */
+    public int getModCount() {
+        return mModCount;
     }
 
-    public ArrayList<Crime> getCrimes() {
+    /**
+     * @return every crime. Crimes are decoded from disk as they're
+     * first fetched from the list, so fetch only the ones you need.
+     * Use a {@link CrimePager} to decode them off the main thread.
+     */
+    public LazyCrimeList getCrimes() {
         return mCrimes;
     }
 
     public void deleteCrime(Crime c) {
-        mCrimes.remove(c);
-        saveCrimes();
+        deleteCrimes(Collections.singletonList(c));
+    }
+
+    /**
+     * Delete several crimes at once. The list is compacted in one pass
+     * and the deletes are saved together.
+     * @return the removed positions as (start, count) pairs of contiguous
+     * ranges, highest first, so they can be notified in order without
+     * adjusting positions
+     */
+    public int[] deleteCrimes(Collection<Crime> crimes) {
+        int[] indices = new int[crimes.size()];
+        int count = 0;
+        for (Crime c : crimes) {
+            UUID id = c.getId();
+            int index = mIndex.remove(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (index < 0)
+                continue;
+            indices[count++] = index;
+            mPendingPuts.remove(id);
+            mPendingDeletes.add(id);
+        }
+        if (count == 0)
+            return new int[0];
+
+        Arrays.sort(indices, 0, count);
+        mCrimes.removeIndices(indices, count);
+        // everything after the first removed crime moved down
+        for (int i = indices[0]; i < mCrimes.size(); i++) {
+            indexCrime(i);
+        }
+        mModCount++;
+        scheduleWrite();
+
+        int[] ranges = new int[count * 2];
+        int rangeCount = 0;
+        for (int end = count; end > 0; ) {
+            int start = end - 1;
+            while (start > 0 && indices[start - 1] == indices[start] - 1)
+                start--;
+            ranges[rangeCount++] = indices[start];
+            ranges[rangeCount++] = end - start;
+            end = start;
+        }
+        return Arrays.copyOf(ranges, rangeCount);
+    }
+
+    /** add a crime, or replace the one with the same id */
+    private void putCrime(Crime c) {
+        int index = indexOf(c.getId());
+        if (index >= 0) {
+            mCrimes.set(index, c);
+        } else {
+            mCrimes.add(c);
+            indexCrime(mCrimes.size() - 1);
+        }
+    }
+
+    private boolean removeCrime(UUID id) {
+        int index = mIndex.remove(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (index < 0)
+            return false;
+        mCrimes.remove(index);
+        // everything after the removed crime moved down one
+        for (int i = index; i < mCrimes.size(); i++) {
+            indexCrime(i);
+        }
+        return true;
+    }
+
+    private void rebuildIndex() {
+        mIndex = new UuidIndex(mCrimes.size());
+        for (int i = 0; i < mCrimes.size(); i++) {
+            indexCrime(i);
+        }
+    }
+
+    private void indexCrime(int index) {
+        // index by the ids alone, so loading doesn't decode every crime
+        mIndex.put(mCrimes.getIdMostSignificantBits(index),
+                mCrimes.getIdLeastSignificantBits(index), index);
+    }
+
+    private void journalPut(Crime c) {
+        // a put replaces the whole crime, so an earlier delete is moot
+        mPendingDeletes.remove(c.getId());
+        mPendingPuts.put(c.getId(), c);
+        scheduleWrite();
+    }
+
+    /**
+     * Write a full snapshot of every crime and clear the journal.
+     * Individual changes are journaled as they happen, so this is
+     * only needed to compact the journal. Like every save, this
+     * happens shortly afterwards on a background thread. With the
+     * database there is no journal to compact, so this does nothing.
+     */
+    public void saveCrimes() {
+        if (mDatabase != null || mModCount == mSnapshotModCount)
+            return;
+        mSnapshotPending = true;
+        scheduleWrite();
     }
 
-    public boolean saveCrimes() {
+    /**
+     * Write any pending changes now and wait for every save to finish.
+     * This blocks, so only call it when the app is shutting down.
+     */
+    public void flush() {
+        writePending();
         try {
-            mSerializer.saveCrimes(mCrimes);
-            Log.d(TAG, "crimes saved to file");
-            return true;
+            mSaveExecutor.submit(new Runnable() {
+                public void run() {
+                    // nothing; saves run in order, so this waits for them
+                }
+            }).get();
         } catch (Exception e) {
-            Log.e(TAG, "Error saving crimes: " + e);
-            return false;
+            Log.e(TAG, "Error waiting for crimes to save: ", e);
         }
     }
-}
 
+    private void scheduleWrite() {
+        // restart the window, so a burst of changes makes one write
+        mHandler.removeCallbacks(mWritePending);
+        mHandler.postDelayed(mWritePending, Math.max(SAVE_DELAY_MILLIS, mRetryDelayMillis));
+    }
+
+    private void writePending() {
+        mHandler.removeCallbacks(mWritePending);
+
+        int pendingCount = mPendingPuts.size() + mPendingDeletes.size();
+        if (mDatabase != null) {
+            if (pendingCount > 0)
+                writeDatabase();
+        } else if (mSnapshotPending || mJournaledSinceSnapshot + pendingCount >= MAX_JOURNAL_RECORDS) {
+            writeSnapshot();
+        } else if (pendingCount > 0) {
+            writeJournal();
+        }
+    }
+
+    private void writeSnapshot() {
+        // Copy the crimes now, so none is saved half edited. Crimes that
+        // were never decoded aren't, and are copied over undecoded. A crime
+        // edited after this is journaled again after the snapshot, and
+        // replaying a put over a snapshot that already has it is harmless.
+        final LazyCrimeList crimes = mCrimes.snapshot();
+        final CrimeSerializer migrateFrom = mMigrateFrom;
+        // kept until the snapshot is known to be written, in case it isn't
+        final ArrayList<Crime> puts = new ArrayList<Crime>(mPendingPuts.values());
+        final ArrayList<UUID> deletes = new ArrayList<UUID>(mPendingDeletes);
+        final int journaled = mJournaledSinceSnapshot;
+        final int modCount = mModCount;
+        mMigrateFrom = null;
+        mPendingPuts.clear();
+        mPendingDeletes.clear();
+        mSnapshotPending = false;
+        mJournaledSinceSnapshot = 0;
+
+        mSaveExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    mSerializer.saveCrimes(crimes);
+                    // the snapshot now includes every journaled change
+                    mJournal.reset();
+                    if (migrateFrom != null)
+                        migrateFrom.delete();
+                    Log.d(TAG, "crimes saved to file");
+                } catch (Exception e) {
+                    Log.e(TAG, "Error saving crimes, journaling the changes instead: " + e);
+                    // the old snapshot and journal are still there, so
+                    // journal what this snapshot would have saved on top
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            mJournaledSinceSnapshot += journaled;
+                            if (mMigrateFrom == null)
+                                mMigrateFrom = migrateFrom;
+                            requeue(puts, deletes);
+                            // straight to the journal, rather than another
+                            // snapshot that may fail the same way
+                            writeJournal();
+                        }
+                    });
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        // a failed snapshot leaves this behind, so saveCrimes() tries again
+                        mSnapshotModCount = modCount;
+                    }
+                });
+            }
+        });
+    }
+
+    private void writeJournal() {
+        // build records now, so they capture the crimes as they are
+        final ArrayList<String> records = new ArrayList<String>();
+        try {
+            for (Crime c : mPendingPuts.values()) {
+                records.add(CrimeJournal.putRecord(c));
+            }
+            for (UUID id : mPendingDeletes) {
+                records.add(CrimeJournal.deleteRecord(id));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error journaling crimes, saving everything: " + e);
+            writeSnapshot();
+            return;
+        }
+        mPendingPuts.clear();
+        mPendingDeletes.clear();
+        mJournaledSinceSnapshot += records.size();
+
+        mSaveExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    mJournal.append(records);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error journaling crimes, saving everything: " + e);
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            saveCrimes();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void writeDatabase() {
+        // build rows now, so they capture the crimes as they are
+        final ArrayList<Crime> puts = new ArrayList<Crime>(mPendingPuts.values());
+        final ArrayList<ContentValues> rows = new ArrayList<ContentValues>(puts.size());
+        for (Crime c : puts) {
+            rows.add(c.toContentValues());
+        }
+        final ArrayList<UUID> deletes = new ArrayList<UUID>(mPendingDeletes);
+        mPendingPuts.clear();
+        mPendingDeletes.clear();
+
+        mSaveExecutor.execute(new Runnable() {
+            public void run() {
+                // the crimes are going back to files, with these changes
+                if (mMigrationFailed)
+                    return;
+                try {
+                    mDatabase.writeChanges(rows, deletes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error saving crimes, retrying: " + e);
+                    // the transaction was rolled back, so none of the batch
+                    // was saved; queue it again behind any newer changes,
+                    // waiting longer each time so a full disk isn't hammered
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            mRetryDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS,
+                                    Math.max(SAVE_DELAY_MILLIS, mRetryDelayMillis * 2));
+                            requeue(puts, deletes);
+                        }
+                    });
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mRetryDelayMillis = 0;
+                    }
+                });
+            }
+        });
+    }
+
+    private void requeue(ArrayList<Crime> puts, ArrayList<UUID> deletes) {
+        for (Crime c : puts) {
+            if (!mPendingPuts.containsKey(c.getId()) && !mPendingDeletes.contains(c.getId())
+                    && indexOf(c.getId()) >= 0)
+                mPendingPuts.put(c.getId(), c);
+        }
+        for (UUID id : deletes) {
+            if (!mPendingPuts.containsKey(id) && !mPendingDeletes.contains(id))
+                mPendingDeletes.add(id);
+        }
+        scheduleWrite();
+    }
+}
@@ -10,4 +10,13 @@ public class CrimeListActivity extends SingleFragmentActivity {
     protected Fragment createFragment() {
         return new CrimeListFragment();
     }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (isFinishing()) {
+            // leaving the app; don't leave changes waiting to be saved
+            CrimeLab.get(this).flush();
+        }
+    }
 }
@@ -0,0 +1,423 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Works out how the crimes changed while the list wasn't watching, and
+ * tells the list's adapter with fine-grained notifications rather than
+ * notifyDataSetChanged, so only the rows that changed are rebound and
+ * they animate.
+ *
+ * Call {@link #snapshot()} before the crimes can change out of sight,
+ * and {@link #dispatchChanges(RecyclerView.Adapter)} once the list is
+ * back. The diff is computed on a background thread. Until it has been
+ * dispatched the adapter has to keep showing the snapshot, so it reads
+ * its count, ids and positions through this class.
+ *
+ * Use a differ from the main thread only.
+ */
+class CrimeListDiffer {
+    static final int OP_REMOVE = 0;
+    static final int OP_MOVE = 1;
+    static final int OP_INSERT = 2;
+    static final int OP_CHANGE = 3;
+
+    private final CrimeLab mCrimeLab;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // what the adapter shows, while it differs from the crimes; null otherwise
+    private Snapshot mShown;
+    // bumped to drop diffs that are out of date before they're dispatched
+    private int mGeneration;
+    // crimes that were decoded while mShown was up, in CrimeLab positions
+    private IntArray mDeferredChanges = new IntArray();
+
+    public CrimeListDiffer(CrimeLab crimeLab) {
+        mCrimeLab = crimeLab;
+    }
+
+    /** remember the crimes as the adapter shows them now */
+    public void snapshot() {
+        if (mShown == null)
+            mShown = new Snapshot(mCrimeLab);
+    }
+
+    /**
+     * Diff the crimes against the snapshot in the background, then tell
+     * the adapter what changed. Without a snapshot the whole data set
+     * is reported changed.
+     */
+    public void dispatchChanges(final RecyclerView.Adapter<?> adapter) {
+        final Snapshot shown = mShown;
+        if (shown == null) {
+            adapter.notifyDataSetChanged();
+            return;
+        }
+        final Snapshot now = new Snapshot(mCrimeLab);
+        final int generation = ++mGeneration;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final int[] ops = diff(shown, now);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation != mGeneration)
+                            return;
+                        mShown = null;
+                        if (mCrimeLab.getModCount() != now.mModCount) {
+                            // crimes were added or deleted while diffing
+                            adapter.notifyDataSetChanged();
+                        } else {
+                            dispatch(ops, adapter);
+                        }
+                        for (int i = 0; i < mDeferredChanges.size(); i += 2) {
+                            adapter.notifyItemRangeChanged(mDeferredChanges.get(i),
+                                    mDeferredChanges.get(i + 1));
+                        }
+                        mDeferredChanges.clear();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forget the snapshot and any diff in progress, telling the adapter
+     * everything changed. Call before changing the crimes from the list
+     * itself, so its notifications line up with what the adapter shows.
+     */
+    public void cancel(RecyclerView.Adapter<?> adapter) {
+        if (mShown == null)
+            return;
+        mShown = null;
+        mGeneration++;
+        mDeferredChanges.clear();
+        adapter.notifyDataSetChanged();
+    }
+
+    public void release() {
+        mGeneration++;
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    public int getItemCount() {
+        return mShown != null ? mShown.size() : mCrimeLab.getCrimes().size();
+    }
+
+    public long getItemId(int position) {
+        if (mShown != null)
+            return mShown.mMostSigBits[position] ^ mShown.mLeastSigBits[position];
+        LazyCrimeList crimes = mCrimeLab.getCrimes();
+        return crimes.getIdMostSignificantBits(position) ^ crimes.getIdLeastSignificantBits(position);
+    }
+
+    /**
+     * @return the CrimeLab position of the crime the adapter shows at
+     * position, or -1 if it has since been deleted
+     */
+    public int getCrimeIndex(int position) {
+        if (mShown == null)
+            return position;
+        return mCrimeLab.indexOf(
+                new UUID(mShown.mMostSigBits[position], mShown.mLeastSigBits[position]));
+    }
+
+    /**
+     * Tell the adapter crimes in [start, end) of CrimeLab changed, now or,
+     * if the adapter is showing a snapshot, once the diff is dispatched.
+     */
+    public void notifyCrimesChanged(RecyclerView.Adapter<?> adapter, int start, int end) {
+        if (mShown == null) {
+            adapter.notifyItemRangeChanged(start, end - start);
+        } else {
+            mDeferredChanges.add(start);
+            mDeferredChanges.add(end - start);
+        }
+    }
+
+    private static void dispatch(int[] ops, RecyclerView.Adapter<?> adapter) {
+        for (int i = 0; i < ops.length; i += 3) {
+            switch (ops[i]) {
+                case OP_REMOVE:
+                    adapter.notifyItemRangeRemoved(ops[i + 1], ops[i + 2]);
+                    break;
+                case OP_MOVE:
+                    adapter.notifyItemMoved(ops[i + 1], ops[i + 2]);
+                    break;
+                case OP_INSERT:
+                    adapter.notifyItemRangeInserted(ops[i + 1], ops[i + 2]);
+                    break;
+                case OP_CHANGE:
+                    adapter.notifyItemRangeChanged(ops[i + 1], ops[i + 2]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Compute the operations that turn before into after, as triples of
+     * (op, position, count) or, for moves, (op, from, to). Applied in
+     * order, each position is relative to the list as the previous
+     * operations left it, as RecyclerView expects.
+     *
+     * Crimes are matched by id. Removals come first, from the bottom up.
+     * The longest run of surviving crimes that kept their relative order
+     * stays put; every other survivor is moved once and every new crime
+     * inserted once, in their final order, each right after the crime
+     * that precedes it in after. Last, crimes whose version changed are
+     * reported changed. O(n log n) overall.
+     */
+    static int[] diff(Snapshot before, Snapshot after) {
+        IntArray ops = new IntArray();
+        int oldSize = before.size();
+        int newSize = after.size();
+
+        UuidIndex newIndex = new UuidIndex(newSize);
+        for (int j = 0; j < newSize; j++) {
+            newIndex.put(after.mMostSigBits[j], after.mLeastSigBits[j], j);
+        }
+
+        // oldToNew[i]: where old crime i ended up, or -1 if it was removed
+        int[] oldToNew = new int[oldSize];
+        // newToRank[j]: new crime j's position among the survivors, in old order, or -1 if new
+        int[] newToRank = new int[newSize];
+        int[] newToOld = new int[newSize];
+        Arrays.fill(newToRank, -1);
+        int survivors = 0;
+        for (int i = 0; i < oldSize; i++) {
+            int j = newIndex.get(before.mMostSigBits[i], before.mLeastSigBits[i]);
+            oldToNew[i] = j;
+            if (j >= 0) {
+                newToRank[j] = survivors++;
+                newToOld[j] = i;
+            }
+        }
+
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (oldToNew[i] < 0)
+                ops.addRange(OP_REMOVE, i, true);
+        }
+
+        boolean[] stays = longestIncreasingRanks(newToRank, survivors);
+
+        // Lay out every slot a crime ever occupies as one linked list: the
+        // survivors as they are after the removals, then each moved or new
+        // crime's final slot spliced in after its predecessor's.
+        int nodeCount = survivors + newSize;
+        int[] next = new int[nodeCount];
+        int head = survivors > 0 ? 0 : -1;
+        for (int r = 0; r < survivors; r++) {
+            next[r] = r + 1 < survivors ? r + 1 : -1;
+        }
+        int previous = -1;
+        for (int j = 0; j < newSize; j++) {
+            int node;
+            if (newToRank[j] >= 0 && stays[j]) {
+                node = newToRank[j];
+            } else {
+                node = survivors + j;
+                if (previous < 0) {
+                    next[node] = head;
+                    head = node;
+                } else {
+                    next[node] = next[previous];
+                    next[previous] = node;
+                }
+            }
+            previous = node;
+        }
+        int[] order = new int[nodeCount];
+        int position = 0;
+        for (int node = head; node >= 0; node = next[node]) {
+            order[node] = position++;
+        }
+
+        // replay the moves and inserts, counting the slots in use before each
+        SlotCounter inUse = new SlotCounter(nodeCount);
+        for (int r = 0; r < survivors; r++) {
+            inUse.add(order[r], 1);
+        }
+        for (int j = 0; j < newSize; j++) {
+            int rank = newToRank[j];
+            if (rank >= 0 && stays[j])
+                continue;
+            int node = survivors + j;
+            if (rank >= 0) {
+                int from = inUse.countBefore(order[rank]);
+                inUse.add(order[rank], -1);
+                int to = inUse.countBefore(order[node]);
+                inUse.add(order[node], 1);
+                if (from != to)
+                    ops.add(OP_MOVE, from, to);
+            } else {
+                ops.addRange(OP_INSERT, inUse.countBefore(order[node]), false);
+                inUse.add(order[node], 1);
+            }
+        }
+
+        for (int j = 0; j < newSize; j++) {
+            if (newToRank[j] >= 0 && before.mVersions[newToOld[j]] != after.mVersions[j])
+                ops.addRange(OP_CHANGE, j, false);
+        }
+        return ops.toArray();
+    }
+
+    /**
+     * @return which new crimes belong to a longest run of survivors whose
+     * ranks increase, i.e. that kept their order relative to each other
+     */
+    private static boolean[] longestIncreasingRanks(int[] newToRank, int survivors) {
+        int newSize = newToRank.length;
+        boolean[] stays = new boolean[newSize];
+        // tails[k]: the new position ending the best run of length k + 1 found so far
+        int[] tails = new int[survivors];
+        int[] previous = new int[newSize];
+        int length = 0;
+        for (int j = 0; j < newSize; j++) {
+            int rank = newToRank[j];
+            if (rank < 0)
+                continue;
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (newToRank[tails[mid]] < rank) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[j] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = j;
+            if (low == length)
+                length++;
+        }
+        for (int j = length > 0 ? tails[length - 1] : -1; j >= 0; j = previous[j]) {
+            stays[j] = true;
+        }
+        return stays;
+    }
+
+    /** the ids and versions of the crimes at one moment */
+    static class Snapshot {
+        final long[] mMostSigBits;
+        final long[] mLeastSigBits;
+        // 0 for crimes that haven't been decoded, which can't have changed
+        final int[] mVersions;
+        final int mModCount;
+
+        Snapshot(CrimeLab crimeLab) {
+            LazyCrimeList crimes = crimeLab.getCrimes();
+            int size = crimes.size();
+            mMostSigBits = new long[size];
+            mLeastSigBits = new long[size];
+            mVersions = new int[size];
+            for (int i = 0; i < size; i++) {
+                mMostSigBits[i] = crimes.getIdMostSignificantBits(i);
+                mLeastSigBits[i] = crimes.getIdLeastSignificantBits(i);
+                if (crimes.isLoaded(i))
+                    mVersions[i] = crimes.get(i).getVersion();
+            }
+            mModCount = crimeLab.getModCount();
+        }
+
+        /** a snapshot of the given ids and versions, for testing */
+        Snapshot(long[] mostSigBits, long[] leastSigBits, int[] versions) {
+            mMostSigBits = mostSigBits;
+            mLeastSigBits = leastSigBits;
+            mVersions = versions;
+            mModCount = 0;
+        }
+
+        int size() {
+            return mMostSigBits.length;
+        }
+    }
+
+    /** a Fenwick tree counting slots in use, by slot order */
+    private static class SlotCounter {
+        private final int[] mTree;
+
+        SlotCounter(int size) {
+            mTree = new int[size + 1];
+        }
+
+        void add(int slot, int delta) {
+            for (int i = slot + 1; i < mTree.length; i += i & -i) {
+                mTree[i] += delta;
+            }
+        }
+
+        /** @return the number of slots in use before slot */
+        int countBefore(int slot) {
+            int count = 0;
+            for (int i = slot; i > 0; i -= i & -i) {
+                count += mTree[i];
+            }
+            return count;
+        }
+    }
+
+    /** a growable int array, also used to build (op, position, count) triples */
+    private static class IntArray {
+        private int[] mValues = new int[16];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length)
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            mValues[mSize++] = value;
+        }
+
+        void add(int op, int a, int b) {
+            add(op);
+            add(a);
+            add(b);
+        }
+
+        /**
+         * Add one item to a range op, extending the last op if it's the
+         * same kind and adjacent.
+         * @param descending true if positions are being visited bottom up
+         */
+        void addRange(int op, int position, boolean descending) {
+            if (mSize >= 3 && mValues[mSize - 3] == op) {
+                int start = mValues[mSize - 2];
+                int count = mValues[mSize - 1];
+                if (descending && position == start - 1) {
+                    mValues[mSize - 2] = position;
+                    mValues[mSize - 1] = count + 1;
+                    return;
+                }
+                if (!descending && position == start + count) {
+                    mValues[mSize - 1] = count + 1;
+                    return;
+                }
+            }
+            add(op, position, 1);
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+}
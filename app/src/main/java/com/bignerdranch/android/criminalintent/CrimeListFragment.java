@@ -2,6 +2,7 @@ package com.bignerdranch.android.criminalintent;
 
 import android.annotation.TargetApi;
 import android.app.ActivityOptions;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
@@ -18,6 +19,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CheckBox;
+import android.widget.ImageView;
 import android.support.v7.widget.RecyclerView;
 import android.widget.TextView;
 
@@ -26,15 +28,26 @@ import com.bignerdranch.android.recyclerviewchoicemode.MultiSelector;
 import com.bignerdranch.android.recyclerviewchoicemode.SwappingHolder;
 
 import java.util.ArrayList;
-import java.util.List;
 
 public class CrimeListFragment extends BaseFragment {
+    private static final String KEY_SELECTIONS = "selections";
+    // rows ahead of the scroll to cache thumbnails for
+    private static final int THUMBNAIL_PREFETCH_ROWS = 4;
 
     private RecyclerView mRecyclerView;
 
     private MultiSelector mMultiSelector = new MultiSelector();
 
-    private ArrayList<Crime> mCrimes;
+    private LazyCrimeList mCrimes;
+    // decodes crimes for the list in the background, a page at a time
+    private CrimePager mCrimePager;
+    // tells the adapter what changed while the pager was up
+    private CrimeListDiffer mDiffer;
+    private PhotoLoader mPhotoLoader;
+    // holds thumbnails back while the list is flung past them
+    private FlingDetector mFlingDetector;
+    private int mThumbnailSize;
+    private int mLastBoundPosition = -1;
     private boolean mSubtitleVisible;
     
     @Override
@@ -44,6 +57,79 @@ public class CrimeListFragment extends BaseFragment {
         getActivity().setTitle(R.string.crimes_title);
         setRetainInstance(true);
         mSubtitleVisible = false;
+        mMultiSelector.setHasStableIds(true);
+        mDiffer = new CrimeListDiffer(CrimeLab.get(getActivity()));
+        mCrimePager = new CrimePager(CrimeLab.get(getActivity()), new CrimePager.Listener() {
+            public void onCrimesLoaded(int start, int end) {
+                if (mRecyclerView != null)
+                    mDiffer.notifyCrimesChanged(mRecyclerView.getAdapter(), start, end);
+            }
+        });
+
+        mPhotoLoader = PhotoLoader.get(getActivity());
+        mThumbnailSize = getResources().getDimensionPixelSize(R.dimen.crime_list_thumbnail_size);
+        mFlingDetector = new FlingDetector(new FlingDetector.Listener() {
+            public void onFlingStarted() {
+                mPhotoLoader.pause();
+            }
+
+            public void onFlingEnded() {
+                mPhotoLoader.resume();
+            }
+        });
+
+        if (savedInstanceState != null) {
+            mMultiSelector.restoreSelectionStates(savedInstanceState.getBundle(KEY_SELECTIONS));
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        if (mMultiSelector.isSelectable()) {
+            // Bring back the action mode for restored selections without
+            // letting it clear them
+            mDeleteMode.setClearOnPrepare(false);
+            ((ActionBarActivity) getActivity()).startSupportActionMode(mDeleteMode);
+            mDeleteMode.setClearOnPrepare(true);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        // don't leave the loader paused for whatever comes next
+        mFlingDetector.reset();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mCrimePager.release();
+        mDiffer.release();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mRecyclerView == null)
+            return;
+        LinearLayoutManager layoutManager = (LinearLayoutManager)mRecyclerView.getLayoutManager();
+        mCrimePager.trimMemory(level, layoutManager.findFirstVisibleItemPosition(),
+                layoutManager.findLastVisibleItemPosition());
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBundle(KEY_SELECTIONS, mMultiSelector.saveSelectionStates());
     }
 
     @TargetApi(11)
@@ -68,6 +154,8 @@ public class CrimeListFragment extends BaseFragment {
         // start an instance of CrimePagerActivity
         Intent i = new Intent(getActivity(), CrimePagerActivity.class);
         i.putExtra(CrimeFragment.EXTRA_CRIME_ID, c.getId());
+        // remember what the list shows, to diff against when we're back
+        mDiffer.snapshot();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             // NOTE: shared element transition here.
@@ -75,7 +163,7 @@ public class CrimeListFragment extends BaseFragment {
             // startActivityForResult call. So to get this to work, the entire
             // project had to be shifted over to use stdlib fragments,
             // and the v13 ViewPager.
-            int index = mCrimes.indexOf(c);
+            int index = CrimeLab.get(getActivity()).indexOf(c.getId());
             CrimeHolder holder = (CrimeHolder)mRecyclerView
                     .findViewHolderForPosition(index);
 
@@ -90,7 +178,8 @@ public class CrimeListFragment extends BaseFragment {
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        mRecyclerView.getAdapter().notifyDataSetChanged();
+        // rebind only the crimes that were edited, in the background
+        mDiffer.dispatchChanges(mRecyclerView.getAdapter());
     }
 
     @Override
@@ -103,7 +192,7 @@ public class CrimeListFragment extends BaseFragment {
         }
     }
 
-    private ActionMode.Callback mDeleteMode = new ModalMultiSelectorCallback(mMultiSelector) {
+    private ModalMultiSelectorCallback mDeleteMode = new ModalMultiSelectorCallback(mMultiSelector) {
 
         @Override
         public boolean onCreateActionMode(ActionMode actionMode, Menu menu) {
@@ -115,19 +204,31 @@ public class CrimeListFragment extends BaseFragment {
         public boolean onActionItemClicked(ActionMode actionMode, MenuItem menuItem) {
             switch (menuItem.getItemId()) {
                 case R.id.menu_item_delete_crime:
-                    // Need to finish the action mode before doing the following,
-                    // not after. No idea why, but it crashes.
-                    actionMode.finish();
-
-                    for (int i = mCrimes.size()-1; i >= 0; i--) {
-                        if (mMultiSelector.isSelected(i, 0)) {
-                            Crime crime = mCrimes.get(i);
-                            CrimeLab.get(getActivity()).deleteCrime(crime);
-                            mRecyclerView.getAdapter().notifyItemRemoved(i);
+                    // Finishing the action mode and clearing selections both
+                    // refresh every holder; batch them into a single refresh.
+                    mMultiSelector.beginBatch();
+                    try {
+                        // Need to finish the action mode before doing the following,
+                        // not after. No idea why, but it crashes.
+                        actionMode.finish();
+                        mDiffer.cancel(mRecyclerView.getAdapter());
+
+                        ArrayList<Crime> selected = new ArrayList<Crime>();
+                        for (int i = 0; i < mCrimes.size(); i++) {
+                            // only decode the crimes being deleted
+                            if (mMultiSelector.isSelected(i, getItemId(i)))
+                                selected.add(mCrimes.get(i));
+                        }
+                        int[] removed = CrimeLab.get(getActivity()).deleteCrimes(selected);
+                        for (int i = 0; i < removed.length; i += 2) {
+                            mRecyclerView.getAdapter().notifyItemRangeRemoved(removed[i], removed[i + 1]);
                         }
-                    }
 
-                    mMultiSelector.clearSelections();
+                        mMultiSelector.clearSelections();
+                    } finally {
+                        // or the selector never refreshes a holder again
+                        mMultiSelector.endBatch();
+                    }
                     return true;
                 default:
                     break;
@@ -140,9 +241,11 @@ public class CrimeListFragment extends BaseFragment {
         switch (item.getItemId()) {
             case R.id.menu_item_new_crime:
                 final Crime crime = new Crime();
+                mDiffer.cancel(mRecyclerView.getAdapter());
                 CrimeLab.get(getActivity()).addCrime(crime);
 
-                mRecyclerView.getAdapter().notifyItemInserted(mCrimes.indexOf(crime));
+                mRecyclerView.getAdapter().notifyItemInserted(
+                        CrimeLab.get(getActivity()).indexOf(crime.getId()));
 
                 // NOTE: Left this code in for commentary. I believe this is what you would do
                 // to wait until the new crime is added, then animate the selection of the new crime.
@@ -179,8 +282,35 @@ public class CrimeListFragment extends BaseFragment {
     }
 
 
+    private String getPhotoPath(Photo p) {
+        return getActivity().getFileStreamPath(p.getFilename()).getAbsolutePath();
+    }
+
+    private void prefetchThumbnails(int position) {
+        // look ahead of the way the list is moving
+        int direction = position >= mLastBoundPosition ? 1 : -1;
+        mLastBoundPosition = position;
+        if (mFlingDetector.isFlinging())
+            return;
+
+        int count = mDiffer.getItemCount();
+        for (int i = 1; i <= THUMBNAIL_PREFETCH_ROWS; i++) {
+            int pos = position + i * direction;
+            if (pos < 0 || pos >= count)
+                break;
+            // only crimes already decoded; the pager fetches the rest
+            int index = mDiffer.getCrimeIndex(pos);
+            if (index < 0 || !mCrimes.isLoaded(index))
+                continue;
+            Photo p = mCrimes.get(index).getPhoto();
+            if (p != null)
+                mPhotoLoader.prefetch(getPhotoPath(p), mThumbnailSize, mThumbnailSize);
+        }
+    }
+
     private class CrimeHolder extends SwappingHolder
             implements View.OnClickListener, View.OnLongClickListener {
+        private final ImageView mThumbnailView;
         private final TextView mTitleTextView;
         private final TextView mDateTextView;
         private final CheckBox mSolvedCheckBox;
@@ -189,6 +319,7 @@ public class CrimeListFragment extends BaseFragment {
         public CrimeHolder(View itemView) {
             super(itemView, mMultiSelector);
 
+            mThumbnailView = (ImageView) itemView.findViewById(R.id.crime_list_item_thumbnailImageView);
             mTitleTextView = (TextView) itemView.findViewById(R.id.crime_list_item_titleTextView);
             mDateTextView = (TextView) itemView.findViewById(R.id.crime_list_item_dateTextView);
             mSolvedCheckBox = (CheckBox) itemView.findViewById(R.id.crime_list_item_solvedCheckBox);
@@ -202,6 +333,27 @@ public class CrimeListFragment extends BaseFragment {
             mTitleTextView.setText(crime.getTitle());
             mDateTextView.setText(crime.getDate().toString());
             mSolvedCheckBox.setChecked(crime.isSolved());
+            Photo p = crime.getPhoto();
+            if (p != null) {
+                mPhotoLoader.load(getPhotoPath(p), mThumbnailView);
+            } else {
+                clearThumbnail();
+            }
+        }
+
+        /** show an empty row while the crime is loaded */
+        public void bindPlaceholder() {
+            mCrime = null;
+            mTitleTextView.setText(null);
+            mDateTextView.setText(null);
+            mSolvedCheckBox.setChecked(false);
+            clearThumbnail();
+        }
+
+        /** stop loading the thumbnail and let go of it */
+        public void clearThumbnail() {
+            mPhotoLoader.cancel(mThumbnailView);
+            PictureUtils.cleanImageView(mThumbnailView);
         }
 
         @Override
@@ -223,7 +375,16 @@ public class CrimeListFragment extends BaseFragment {
         }
     }
 
+    private long getItemId(int pos) {
+        // read the id without decoding the crime
+        return mCrimes.getIdMostSignificantBits(pos) ^ mCrimes.getIdLeastSignificantBits(pos);
+    }
+
     private class CrimeAdapter extends RecyclerView.Adapter<CrimeHolder> {
+        public CrimeAdapter() {
+            setHasStableIds(true);
+        }
+
         @Override
         public CrimeHolder onCreateViewHolder(ViewGroup parent, int pos) {
             View view = LayoutInflater.from(parent.getContext())
@@ -233,13 +394,31 @@ public class CrimeListFragment extends BaseFragment {
 
         @Override
         public void onBindViewHolder(CrimeHolder holder, int pos) {
-            Crime crime = mCrimes.get(pos);
-            holder.bindCrime(crime);
+            mFlingDetector.onBind();
+            // while a diff is pending, the adapter still shows the old order
+            int index = mDiffer.getCrimeIndex(pos);
+            Crime crime = index >= 0 ? mCrimePager.getCrime(index) : null;
+            if (crime != null) {
+                holder.bindCrime(crime);
+            } else {
+                holder.bindPlaceholder();
+            }
+            prefetchThumbnails(pos);
+        }
+
+        @Override
+        public void onViewRecycled(CrimeHolder holder) {
+            holder.clearThumbnail();
+        }
+
+        @Override
+        public long getItemId(int pos) {
+            return mDiffer.getItemId(pos);
         }
 
         @Override
         public int getItemCount() {
-            return mCrimes.size();
+            return mDiffer.getItemCount();
         }
     }
 }
@@ -0,0 +1,165 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+/**
+ * Decodes the crimes a list shows a page at a time, off the main thread.
+ *
+ * Ask for a crime with {@link #getCrime(int)}. If it isn't in memory yet
+ * its page is loaded in the background and you get null, so show a
+ * placeholder; the listener is told when the real crime arrives. Pages
+ * ahead of the direction the list is moving are loaded early, and
+ * {@link #trimMemory(int, int, int)} forgets pages far from what's on
+ * screen.
+ *
+ * Use a pager from the main thread only.
+ */
+class CrimePager {
+    private static final String TAG = "CrimePager";
+    static final int PAGE_SIZE = 50;
+    // pages loaded ahead of the scroll, and kept either side of the screen when trimming
+    private static final int PREFETCH_PAGES = 2;
+
+    public interface Listener {
+        /** the crimes in [start, end) were loaded; rebind them */
+        void onCrimesLoaded(int start, int end);
+    }
+
+    private final CrimeLab mCrimeLab;
+    private final Listener mListener;
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final SparseBooleanArray mLoadingPages = new SparseBooleanArray();
+    private int mLastPosition = -1;
+    private boolean mReleased;
+
+    public CrimePager(CrimeLab crimeLab, Listener listener) {
+        mCrimeLab = crimeLab;
+        mListener = listener;
+    }
+
+    /**
+     * @return the crime at position, or null if it's still being loaded
+     */
+    public Crime getCrime(int position) {
+        LazyCrimeList crimes = mCrimeLab.getCrimes();
+        int page = position / PAGE_SIZE;
+        // look ahead of the way the list is moving
+        int direction = position >= mLastPosition ? 1 : -1;
+        mLastPosition = position;
+        for (int i = 1; i <= PREFETCH_PAGES; i++) {
+            requestPage(page + i * direction);
+        }
+
+        if (crimes.isLoaded(position))
+            return crimes.get(position);
+        requestPage(page);
+        return null;
+    }
+
+    /**
+     * Forget loaded crimes outside the pages around [firstVisible,
+     * lastVisible], when the system is short of memory.
+     * @param level a level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level, int firstVisible, int lastVisible) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return;
+
+        LazyCrimeList crimes = mCrimeLab.getCrimes();
+        int keepStart = Math.max(0, (firstVisible / PAGE_SIZE - PREFETCH_PAGES) * PAGE_SIZE);
+        int keepEnd = Math.min(crimes.size(),
+                (lastVisible / PAGE_SIZE + 1 + PREFETCH_PAGES) * PAGE_SIZE);
+        int unloaded = 0;
+        for (int i = 0; i < crimes.size(); i++) {
+            if ((i < keepStart || i >= keepEnd) && crimes.unload(i))
+                unloaded++;
+        }
+        Log.d(TAG, "trimmed " + unloaded + " crimes at level " + level);
+    }
+
+    /** stop loading; the listener won't be called again */
+    public void release() {
+        mReleased = true;
+        mLoader.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void requestPage(int page) {
+        LazyCrimeList crimes = mCrimeLab.getCrimes();
+        int start = page * PAGE_SIZE;
+        if (page < 0 || start >= crimes.size() || mLoadingPages.get(page) || mReleased)
+            return;
+        int end = Math.min(start + PAGE_SIZE, crimes.size());
+
+        // note which records need decoding, and the ids to find them by later
+        final int[] records = new int[end - start];
+        final UUID[] ids = new UUID[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (crimes.isLoaded(i))
+                continue;
+            records[count] = crimes.getRecord(i);
+            ids[count] = new UUID(crimes.getIdMostSignificantBits(i),
+                    crimes.getIdLeastSignificantBits(i));
+            count++;
+        }
+        if (count == 0)
+            return;
+
+        mLoadingPages.put(page, true);
+        final int pageToLoad = page;
+        final int recordCount = count;
+        final CrimeRecords source = crimes.getSource();
+        mLoader.execute(new Runnable() {
+            public void run() {
+                final Crime[] loaded = new Crime[recordCount];
+                try {
+                    for (int i = 0; i < recordCount; i++) {
+                        loaded[i] = source.readCrime(records[i]);
+                    }
+                } catch (Exception e) {
+                    // leave the rest to be decoded on the main thread when they're fetched
+                    Log.e(TAG, "Error loading crimes: ", e);
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mLoadingPages.delete(pageToLoad);
+                        if (!mReleased)
+                            install(records, ids, loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    private void install(int[] records, UUID[] ids, Crime[] loaded) {
+        LazyCrimeList crimes = mCrimeLab.getCrimes();
+        int runStart = -1;
+        int runEnd = -1;
+        for (int i = 0; i < loaded.length; i++) {
+            if (loaded[i] == null)
+                continue;
+            // crimes may have moved while the page loaded, so find them by id
+            int index = mCrimeLab.indexOf(ids[i]);
+            if (index < 0 || !crimes.install(index, records[i], loaded[i]))
+                continue;
+            if (index != runEnd) {
+                if (runStart >= 0)
+                    mListener.onCrimesLoaded(runStart, runEnd);
+                runStart = index;
+            }
+            runEnd = index + 1;
+        }
+        if (runStart >= 0)
+            mListener.onCrimesLoaded(runStart, runEnd);
+    }
+}
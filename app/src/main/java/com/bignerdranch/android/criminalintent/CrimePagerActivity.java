@@ -12,7 +12,7 @@ import android.support.v4.view.ViewPager;
 import android.support.v7.app.ActionBarActivity;
 import android.view.View;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class CrimePagerActivity extends ActionBarActivity {
@@ -44,7 +44,7 @@ public class CrimePagerActivity extends ActionBarActivity {
         }
         setContentView(mViewPager);
 
-        final ArrayList<Crime> crimes = CrimeLab.get(this).getCrimes();
+        final List<Crime> crimes = CrimeLab.get(this).getCrimes();
 
         FragmentManager fm = getFragmentManager();
         mViewPager.setAdapter(new FragmentStatePagerAdapter(fm) {
@@ -60,11 +60,9 @@ public class CrimePagerActivity extends ActionBarActivity {
         }); 
 
         UUID crimeId = (UUID)getIntent().getSerializableExtra(CrimeFragment.EXTRA_CRIME_ID);
-        for (int i = 0; i < crimes.size(); i++) {
-            if (crimes.get(i).getId().equals(crimeId)) {
-                mViewPager.setCurrentItem(i);
-                break;
-            } 
+        int index = CrimeLab.get(this).indexOf(crimeId);
+        if (index >= 0) {
+            mViewPager.setCurrentItem(index);
         }
     }
 }
@@ -0,0 +1,18 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.IOException;
+
+/**
+ * Saved crimes that can be read one record at a time. Ids are cheap to
+ * read; decoding a whole crime may mean touching the disk.
+ */
+interface CrimeRecords {
+    int getCount();
+
+    long getMostSignificantBits(int record);
+
+    long getLeastSignificantBits(int record);
+
+    /** decode one crime */
+    Crime readCrime(int record) throws IOException;
+}
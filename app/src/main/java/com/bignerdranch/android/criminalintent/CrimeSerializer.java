@@ -0,0 +1,24 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads and writes a complete snapshot of the crimes in some file format.
+ */
+public interface CrimeSerializer {
+    /**
+     * @return the saved crimes, or an empty list if nothing has been saved.
+     * The list may decode crimes lazily, but can be changed like any other.
+     */
+    List<Crime> loadCrimes() throws IOException;
+
+    /** replace the saved crimes; a failed save leaves the old ones intact */
+    void saveCrimes(List<Crime> crimes) throws IOException;
+
+    /** @return true if there is a saved snapshot to load */
+    boolean exists();
+
+    /** delete the saved snapshot */
+    void delete();
+}
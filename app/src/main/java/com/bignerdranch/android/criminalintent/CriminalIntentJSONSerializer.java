@@ -1,23 +1,23 @@
 package com.bignerdranch.android.criminalintent;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.Writer;
 
 import java.util.ArrayList;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONTokener;
+import java.util.List;
 
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
-public class CriminalIntentJSONSerializer {
+public class CriminalIntentJSONSerializer implements CrimeSerializer {
 
     private Context mContext;
     private String mFilename;
@@ -27,49 +27,56 @@ public class CriminalIntentJSONSerializer {
         mFilename = f;
     }
 
-    public ArrayList<Crime> loadCrimes() throws IOException, JSONException {
+    public ArrayList<Crime> loadCrimes() throws IOException {
         ArrayList<Crime> crimes = new ArrayList<Crime>();
-        BufferedReader reader = null;
+        JsonReader reader = null;
         try {
-            // open and read the file into a StringBuilder
+            // stream the array straight into Crimes, a token at a time,
+            // rather than holding the text and a JSON tree in memory
             InputStream in = mContext.openFileInput(mFilename);
-            reader = new BufferedReader(new InputStreamReader(in));
-            StringBuilder jsonString = new StringBuilder();
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                // line breaks are omitted and irrelevant
-                jsonString.append(line);
-            }
-            // parse the JSON using JSONTokener
-            JSONArray array = (JSONArray) new JSONTokener(jsonString.toString()).nextValue();
-            // build the array of crimes from JSONObjects
-            for (int i = 0; i < array.length(); i++) {
-                crimes.add(new Crime(array.getJSONObject(i)));
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            reader.beginArray();
+            while (reader.hasNext()) {
+                crimes.add(new Crime(reader));
             }
+            reader.endArray();
         } catch (FileNotFoundException e) {
             // we will ignore this one, since it happens when we start fresh
         } finally {
             if (reader != null)
                 reader.close();
-}
+        }
         return crimes;
     }
 
-    public void saveCrimes(ArrayList<Crime> crimes) throws JSONException, IOException {
-        // build an array in JSON
-        JSONArray array = new JSONArray();
-        for (Crime c : crimes)
-            array.put(c.toJSON());
-
-        // write the file to disk
-        Writer writer = null;
+    public void saveCrimes(List<Crime> crimes) throws IOException {
+        // stream each crime straight to disk instead of building
+        // the whole document in memory first. Write to a temporary
+        // file and swap it in, so a crash mid-save leaves the old
+        // file intact.
+        File file = mContext.getFileStreamPath(mFilename);
+        File tempFile = mContext.getFileStreamPath(mFilename + ".tmp");
+        JsonWriter writer = null;
         try {
-            OutputStream out = mContext.openFileOutput(mFilename, Context.MODE_PRIVATE);
-            writer = new OutputStreamWriter(out);
-            writer.write(array.toString());
+            OutputStream out = new FileOutputStream(tempFile);
+            writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+            writer.beginArray();
+            for (Crime c : crimes)
+                c.writeJSON(writer);
+            writer.endArray();
         } finally {
             if (writer != null)
                 writer.close();
         }
+        if (!tempFile.renameTo(file))
+            throw new IOException("Could not replace " + file);
+    }
+
+    public boolean exists() {
+        return mContext.getFileStreamPath(mFilename).exists();
+    }
+
+    public void delete() {
+        mContext.deleteFile(mFilename);
     }
 }
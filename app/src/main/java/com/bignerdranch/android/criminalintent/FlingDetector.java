@@ -0,0 +1,88 @@
+package com.bignerdranch.android.criminalintent;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Guesses when a list is being flung from how fast its rows are bound, so
+ * that work for rows flying straight past can wait.
+ *
+ * Call {@link #onBind()} whenever a row is bound. A run of binds coming
+ * faster than any drag would, spread over more than one frame, means a
+ * fling. Binds landing in the same frame, like a fresh layout, don't
+ * count. The listener hears when a fling starts, and when binding has
+ * been quiet long enough for the list to have settled.
+ *
+ * Use a detector from the main thread only.
+ */
+class FlingDetector {
+    // this many binds in a row...
+    private static final int BINDS = 4;
+    // ...within this long is a fling
+    private static final long FLING_MILLIS = 120;
+    // ...unless they all came in about one frame
+    private static final long FRAME_MILLIS = 16;
+    // no binds for this long and the list has settled
+    private static final long SETTLE_MILLIS = 150;
+
+    public interface Listener {
+        void onFlingStarted();
+        void onFlingEnded();
+    }
+
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // when the last few rows were bound, as a ring
+    private final long[] mBindTimes = new long[BINDS];
+    private int mBindCount;
+    private boolean mFlinging;
+
+    private final Runnable mSettle = new Runnable() {
+        public void run() {
+            mFlinging = false;
+            mBindCount = 0;
+            mListener.onFlingEnded();
+        }
+    };
+
+    public FlingDetector(Listener listener) {
+        mListener = listener;
+    }
+
+    public void onBind() {
+        long now = SystemClock.uptimeMillis();
+        int slot = mBindCount % BINDS;
+        long oldest = mBindTimes[slot];
+        mBindTimes[slot] = now;
+        mBindCount++;
+
+        if (mFlinging) {
+            mHandler.removeCallbacks(mSettle);
+            mHandler.postDelayed(mSettle, SETTLE_MILLIS);
+            return;
+        }
+        if (mBindCount <= BINDS)
+            return;
+        long span = now - oldest;
+        if (span > FRAME_MILLIS && span <= FLING_MILLIS) {
+            mFlinging = true;
+            mListener.onFlingStarted();
+            mHandler.postDelayed(mSettle, SETTLE_MILLIS);
+        }
+    }
+
+    public boolean isFlinging() {
+        return mFlinging;
+    }
+
+    /** forget any fling in progress, telling the listener it ended */
+    public void reset() {
+        mHandler.removeCallbacks(mSettle);
+        mBindCount = 0;
+        if (mFlinging) {
+            mFlinging = false;
+            mListener.onFlingEnded();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.bignerdranch.android.criminalintent;
 
 import android.app.DialogFragment;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -29,9 +28,7 @@ public class ImageFragment extends DialogFragment {
             ViewGroup parent, Bundle savedInstanceState) {
         mImageView = new ImageView(getActivity());
         String path = (String)getArguments().getSerializable(EXTRA_IMAGE_PATH);
-        BitmapDrawable image = PictureUtils.getScaledDrawable(getActivity(), path);
-
-        mImageView.setImageDrawable(image);
+        PhotoLoader.get(getActivity()).load(path, mImageView);
 
         return mImageView;
     }
@@ -39,6 +36,7 @@ public class ImageFragment extends DialogFragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        PhotoLoader.get(getActivity()).cancel(mImageView);
         PictureUtils.cleanImageView(mImageView);
     }
 }
@@ -0,0 +1,242 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A list of crimes that are decoded from {@link CrimeRecords}, such as a
+ * {@link MappedCrimeFile}, the first time they are asked for. Until then, a crime costs a slot in two
+ * arrays rather than a Crime, a UUID, a Date and their strings.
+ *
+ * Crimes can be added, replaced and removed like in any list. Ids can be
+ * read without decoding, and a snapshot of the list can be taken without
+ * decoding anything.
+ */
+public class LazyCrimeList extends AbstractList<Crime> implements RandomAccess {
+    private static final int NO_RECORD = -1;
+
+    private CrimeRecords mSource;
+    // decoded or added crimes; null where a crime hasn't been decoded yet
+    private Crime[] mCrimes;
+    // each slot's record in mSource, or NO_RECORD if it only lives in mCrimes
+    private int[] mRecords;
+    private int mSize;
+
+    public LazyCrimeList() {
+        mCrimes = new Crime[16];
+        mRecords = new int[16];
+    }
+
+    public LazyCrimeList(Collection<Crime> crimes) {
+        this();
+        addAll(crimes);
+    }
+
+    public LazyCrimeList(CrimeRecords source) {
+        mSource = source;
+        mSize = source.getCount();
+        mCrimes = new Crime[Math.max(mSize, 16)];
+        mRecords = new int[mCrimes.length];
+        for (int i = 0; i < mSize; i++) {
+            mRecords[i] = i;
+        }
+    }
+
+    private LazyCrimeList(LazyCrimeList source) {
+        mSource = source.mSource;
+        mSize = source.mSize;
+        mCrimes = new Crime[source.mCrimes.length];
+        for (int i = 0; i < mSize; i++) {
+            Crime crime = source.mCrimes[i];
+            if (crime != null)
+                mCrimes[i] = new Crime(crime);
+        }
+        mRecords = source.mRecords.clone();
+    }
+
+    @Override
+    public Crime get(int index) {
+        checkIndex(index);
+        Crime crime = mCrimes[index];
+        if (crime == null) {
+            try {
+                crime = mSource.readCrime(mRecords[index]);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read crime " + index, e);
+            }
+            mCrimes[index] = crime;
+        }
+        return crime;
+    }
+
+    /** @return true if the crime at index has already been decoded */
+    public boolean isLoaded(int index) {
+        checkIndex(index);
+        return mCrimes[index] != null;
+    }
+
+    /**
+     * @return the record the slot at index reads from, or -1 if its
+     * crime only lives in memory
+     */
+    int getRecord(int index) {
+        checkIndex(index);
+        return mRecords[index];
+    }
+
+    CrimeRecords getSource() {
+        return mSource;
+    }
+
+    /**
+     * Put a crime that was decoded elsewhere, say on another thread, into
+     * its slot. Does nothing if the slot has since been decoded or no
+     * longer reads from that record.
+     * @return true if the crime was put in the slot
+     */
+    boolean install(int index, int record, Crime crime) {
+        checkIndex(index);
+        if (mCrimes[index] != null || mRecords[index] != record || record == NO_RECORD)
+            return false;
+        mCrimes[index] = crime;
+        return true;
+    }
+
+    /**
+     * Forget the decoded crime at index, so it can be garbage collected
+     * and decoded again later. Crimes that have been changed since they
+     * were decoded stay in memory, since their record is out of date.
+     * @return true if the crime was forgotten
+     */
+    boolean unload(int index) {
+        checkIndex(index);
+        Crime crime = mCrimes[index];
+        if (crime == null || mRecords[index] == NO_RECORD || crime.isDirty())
+            return false;
+        mCrimes[index] = null;
+        return true;
+    }
+
+    public long getIdMostSignificantBits(int index) {
+        checkIndex(index);
+        Crime crime = mCrimes[index];
+        return crime != null ? crime.getId().getMostSignificantBits()
+                : mSource.getMostSignificantBits(mRecords[index]);
+    }
+
+    public long getIdLeastSignificantBits(int index) {
+        checkIndex(index);
+        Crime crime = mCrimes[index];
+        return crime != null ? crime.getId().getLeastSignificantBits()
+                : mSource.getLeastSignificantBits(mRecords[index]);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public Crime set(int index, Crime crime) {
+        Crime old = get(index);
+        mCrimes[index] = crime;
+        mRecords[index] = NO_RECORD;
+        return old;
+    }
+
+    @Override
+    public void add(int index, Crime crime) {
+        if (index < 0 || index > mSize)
+            throw new IndexOutOfBoundsException("index " + index + " of " + mSize);
+        ensureCapacity(mSize + 1);
+        System.arraycopy(mCrimes, index, mCrimes, index + 1, mSize - index);
+        System.arraycopy(mRecords, index, mRecords, index + 1, mSize - index);
+        mCrimes[index] = crime;
+        mRecords[index] = NO_RECORD;
+        mSize++;
+        modCount++;
+    }
+
+    @Override
+    public Crime remove(int index) {
+        checkIndex(index);
+        // avoid decoding a crime just to throw it away
+        Crime old = mCrimes[index];
+        System.arraycopy(mCrimes, index + 1, mCrimes, index, mSize - index - 1);
+        System.arraycopy(mRecords, index + 1, mRecords, index, mSize - index - 1);
+        mSize--;
+        mCrimes[mSize] = null;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Remove the crimes at several indices in a single pass.
+     * @param indices the indices to remove, sorted ascending, no repeats
+     * @param count how many of indices to use
+     */
+    public void removeIndices(int[] indices, int count) {
+        if (count == 0)
+            return;
+        int to = indices[0];
+        int next = 0;
+        for (int from = indices[0]; from < mSize; from++) {
+            if (next < count && indices[next] == from) {
+                next++;
+                continue;
+            }
+            mCrimes[to] = mCrimes[from];
+            mRecords[to] = mRecords[from];
+            to++;
+        }
+        for (int i = to; i < mSize; i++) {
+            mCrimes[i] = null;
+        }
+        mSize = to;
+        modCount++;
+    }
+
+    /**
+     * @return a copy of this list that can be read on another thread while
+     * this one is used. It shares the saved records, but decoded crimes are
+     * copied, since they can be edited. Taking one decodes nothing.
+     */
+    public LazyCrimeList snapshot() {
+        return new LazyCrimeList(this);
+    }
+
+    /**
+     * Write the crime at index in {@link CrimeBinarySerializer}'s record
+     * format. Crimes that were never decoded from a mapped file are
+     * copied byte for byte.
+     */
+    public void writeRecord(int index, DataOutput out) throws IOException {
+        checkIndex(index);
+        Crime crime = mCrimes[index];
+        if (crime == null && mSource instanceof MappedCrimeFile) {
+            ((MappedCrimeFile)mSource).copyRecord(mRecords[index], out);
+        } else {
+            get(index).writeBinary(out);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mCrimes.length)
+            return;
+        int newLength = Math.max(capacity, mCrimes.length * 2);
+        Crime[] crimes = new Crime[newLength];
+        System.arraycopy(mCrimes, 0, crimes, 0, mSize);
+        mCrimes = crimes;
+        int[] records = new int[newLength];
+        System.arraycopy(mRecords, 0, records, 0, mSize);
+        mRecords = records;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize)
+            throw new IndexOutOfBoundsException("index " + index + " of " + mSize);
+    }
+}
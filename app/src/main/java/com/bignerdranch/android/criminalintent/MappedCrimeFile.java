@@ -0,0 +1,129 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only, memory-mapped crime snapshot in version 2 of the
+ * {@link CrimeBinarySerializer} format. Ids can be read straight from
+ * the index and crimes decoded one at a time, without reading the
+ * whole file into the heap.
+ *
+ * <pre>
+ * file:    magic (int) | version (byte) | record* | index entry* | trailer
+ * entry:   id (two longs) | record offset (int)
+ * trailer: count (int) | index offset (int)
+ * </pre>
+ *
+ * Records are laid out back to back in index order. Reads use absolute
+ * positions on duplicates of the mapping, so they are safe from any thread.
+ */
+class MappedCrimeFile implements CrimeRecords {
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+    static final int TRAILER_SIZE = 4 + 4;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mIndexOffset;
+
+    private MappedCrimeFile(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        int trailer = buffer.limit() - TRAILER_SIZE;
+        if (trailer < 0)
+            throw new IOException("Crime file is truncated");
+        mCount = buffer.getInt(trailer);
+        mIndexOffset = buffer.getInt(trailer + 4);
+        if (mCount < 0 || mIndexOffset < 0
+                || (long)mIndexOffset + (long)mCount * INDEX_ENTRY_SIZE != trailer)
+            throw new IOException("Crime file index is corrupt");
+    }
+
+    /** map a version 2 crime file */
+    public static MappedCrimeFile open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedCrimeFile(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getMostSignificantBits(int record) {
+        return mBuffer.getLong(entryOffset(record));
+    }
+
+    public long getLeastSignificantBits(int record) {
+        return mBuffer.getLong(entryOffset(record) + 8);
+    }
+
+    /** decode one crime */
+    public Crime readCrime(int record) throws IOException {
+        return new Crime(new DataInputStream(new RecordInputStream(record)));
+    }
+
+    /** copy one record's bytes, undecoded */
+    public void copyRecord(int record, DataOutput out) throws IOException {
+        int start = recordOffset(record);
+        int end = recordEnd(record);
+        ByteBuffer bytes = mBuffer.duplicate();
+        bytes.position(start);
+        byte[] chunk = new byte[Math.min(end - start, 4096)];
+        for (int remaining = end - start; remaining > 0; remaining -= chunk.length) {
+            int length = Math.min(remaining, chunk.length);
+            bytes.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    private int entryOffset(int record) {
+        if (record < 0 || record >= mCount)
+            throw new IndexOutOfBoundsException("record " + record + " of " + mCount);
+        return mIndexOffset + record * INDEX_ENTRY_SIZE;
+    }
+
+    private int recordOffset(int record) {
+        return mBuffer.getInt(entryOffset(record) + 16);
+    }
+
+    private int recordEnd(int record) {
+        return record + 1 < mCount ? recordOffset(record + 1) : mIndexOffset;
+    }
+
+    /** streams the bytes of a single record out of the mapping */
+    private class RecordInputStream extends InputStream {
+        private final ByteBuffer mBytes;
+
+        public RecordInputStream(int record) {
+            mBytes = mBuffer.duplicate();
+            mBytes.limit(recordEnd(record));
+            mBytes.position(recordOffset(record));
+        }
+
+        @Override
+        public int read() {
+            return mBytes.hasRemaining() ? mBytes.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (!mBytes.hasRemaining())
+                return -1;
+            length = Math.min(length, mBytes.remaining());
+            mBytes.get(buffer, offset, length);
+            return length;
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package com.bignerdranch.android.criminalintent;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import java.util.UUID;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 public class Photo implements Serializable { 
     private static final long serialVersionUID = 1L;
@@ -24,19 +25,41 @@ public class Photo implements Serializable {
         mFilename = filename;
     }
 
-    /** create a Photo from a JSONObject */
-    public Photo(JSONObject json) throws JSONException {
-        mFilename = json.getString(JSON_FILENAME);
+    /** read a Photo from the next object in a JSON stream */
+    public Photo(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(JSON_FILENAME)) {
+                mFilename = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
     }
 
-    public JSONObject toJSON() throws JSONException {
-        JSONObject json = new JSONObject();
-        json.put(JSON_FILENAME, mFilename);
-        return json;
+    /** write this Photo as the next object in a JSON stream */
+    public void writeJSON(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(JSON_FILENAME).value(mFilename);
+        writer.endObject();
     }
 
     public String getFilename() {
         return mFilename;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Photo))
+            return false;
+        String filename = ((Photo)o).mFilename;
+        return mFilename == null ? filename == null : mFilename.equals(filename);
+    }
+
+    @Override
+    public int hashCode() {
+        return mFilename == null ? 0 : mFilename.hashCode();
+    }
 }
 
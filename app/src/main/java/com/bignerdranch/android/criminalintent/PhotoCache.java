@@ -0,0 +1,255 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Keeps decoded crime photos so they needn't be decoded again.
+ *
+ * Bitmaps are kept in memory in an LRU cache bounded by their size in
+ * bytes, and scaled copies are written to a thumbnail directory in the
+ * cache dir, which is bounded the same way. Both are keyed by the photo's
+ * filename and the size it was scaled to. Photo files are never rewritten
+ * under the same name, so entries never go stale.
+ *
+ * The listener is told about each bitmap that leaves the memory cache, so
+ * that it can be reused once nothing else is showing it.
+ *
+ * The memory cache is safe to use from any thread; the disk cache should
+ * be used from background threads only.
+ */
+public class PhotoCache {
+    private static final String TAG = "PhotoCache";
+    private static final String THUMBNAIL_DIR = "photo_thumbnails";
+    private static final int THUMBNAIL_QUALITY = 85;
+    private static final long MAX_DISK_BYTES = 16 * 1024 * 1024;
+
+    public interface Listener {
+        /** bitmap was evicted or replaced; the cache no longer holds it */
+        void onBitmapRemoved(Bitmap bitmap);
+    }
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mThumbnailDir;
+    private final Object mDiskLock = new Object();
+    private long mDiskBytes = -1;
+
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private int mMemoryEvictions;
+    private int mDiskEvictions;
+
+    public PhotoCache(Context appContext, final Listener listener) {
+        // an eighth of the heap, like the platform suggests
+        int maxBytes = (int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (evicted) {
+                    synchronized (PhotoCache.this) {
+                        mMemoryEvictions++;
+                    }
+                }
+                if (oldValue != newValue)
+                    listener.onBitmapRemoved(oldValue);
+            }
+        };
+        mThumbnailDir = new File(appContext.getCacheDir(), THUMBNAIL_DIR);
+    }
+
+    /** the key a photo decoded to fit width by height is cached under */
+    public static String getKey(String filename, int width, int height) {
+        return filename + "@" + width + "x" + height;
+    }
+
+    /**
+     * @return the bitmap in memory for key, or null if it has to be read
+     * from disk or decoded
+     */
+    public Bitmap getFromMemory(String key) {
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            synchronized (this) {
+                mMemoryHits++;
+            }
+        }
+        return bitmap;
+    }
+
+    /** whether key is in memory, without counting it as a hit */
+    public boolean isInMemory(String key) {
+        return mMemoryCache.get(key) != null;
+    }
+
+    /**
+     * Read a thumbnail cached on disk, into a bitmap from pool if one fits.
+     * It isn't kept in memory until it's put there with
+     * {@link #putInMemory(String, Bitmap)}.
+     * @return the bitmap, or null if it has to be decoded from the photo
+     */
+    public Bitmap getFromDisk(String key, BitmapPool pool) {
+        File file = new File(mThumbnailDir, key);
+        Bitmap bitmap = null;
+        if (file.exists()) {
+            bitmap = PictureUtils.decodeBitmap(file.getPath(), pool);
+        }
+        synchronized (this) {
+            if (bitmap != null) {
+                mDiskHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        if (bitmap != null) {
+            // so it's kept longest if it's read again
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /** keep a freshly decoded bitmap in memory and on disk */
+    public void put(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
+        writeThumbnail(key, bitmap);
+    }
+
+    /** keep a bitmap read back from disk in memory */
+    public void putInMemory(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
+    }
+
+    /** forget everything kept in memory; thumbnails on disk are kept */
+    public void clearMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Forget bitmaps kept in memory when the system is short of it.
+     * @param level a level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW &&
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)) {
+            clearMemory();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHits;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getMemoryEvictionCount() {
+        return mMemoryEvictions;
+    }
+
+    public synchronized int getDiskEvictionCount() {
+        return mDiskEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PhotoCache[memoryHits=" + mMemoryHits + ", diskHits=" + mDiskHits +
+            ", misses=" + mMisses + ", memoryEvictions=" + mMemoryEvictions +
+            ", diskEvictions=" + mDiskEvictions + ", memoryBytes=" + mMemoryCache.size() +
+            "/" + mMemoryCache.maxSize() + "]";
+    }
+
+    private void writeThumbnail(String key, Bitmap bitmap) {
+        synchronized (mDiskLock) {
+            if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs())
+                return;
+            File file = new File(mThumbnailDir, key);
+            File tempFile = new File(mThumbnailDir, key + ".tmp");
+            // the size of any thumbnail this replaces, which no longer counts
+            long replacedBytes = file.length();
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tempFile);
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(file))
+                    throw new IOException("Couldn't rename " + tempFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing thumbnail " + key, e);
+                tempFile.delete();
+                return;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // nothing more to do
+                    }
+                }
+            }
+
+            if (mDiskBytes < 0) {
+                mDiskBytes = 0;
+                for (File f : listThumbnails()) {
+                    mDiskBytes += f.length();
+                }
+            } else {
+                mDiskBytes += file.length() - replacedBytes;
+            }
+            if (mDiskBytes > MAX_DISK_BYTES)
+                trimDisk();
+        }
+    }
+
+    /** delete the least recently used thumbnails until the cache fits */
+    private void trimDisk() {
+        File[] files = listThumbnails();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        // trim to three quarters, so we don't trim again on the next write
+        for (int i = 0; i < files.length && mDiskBytes > MAX_DISK_BYTES * 3 / 4; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskBytes -= length;
+                synchronized (this) {
+                    mDiskEvictions++;
+                }
+            }
+        }
+    }
+
+    private File[] listThumbnails() {
+        File[] files = mThumbnailDir.listFiles();
+        return files != null ? files : new File[0];
+    }
+}
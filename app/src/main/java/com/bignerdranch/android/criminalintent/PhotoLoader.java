@@ -0,0 +1,368 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Decodes crime photos on a small pool of background threads and shows
+ * them in ImageViews, so decoding a JPEG never holds up the main thread.
+ *
+ * Each ImageView has at most one request at a time: loading into a view
+ * cancels whatever it was loading before, and {@link #cancel(ImageView)}
+ * drops the request for a view that is going away. A cancelled request
+ * that hasn't started is never decoded; one that has is thrown away.
+ *
+ * Decoded photos are kept in a {@link PhotoCache}, so showing the same
+ * photo again needn't decode it. The loader counts the views and cache
+ * entries holding each bitmap it decodes; once none do, the bitmap goes
+ * to a {@link BitmapPool} for later decodes to draw into. Views should be
+ * cleared with {@link PictureUtils#cleanImageView(ImageView)} so their
+ * bitmaps are counted out.
+ *
+ * While the loader is paused, say during a fling, new loads wait rather
+ * than start, and prefetches are dropped. Loads still wanted when it's
+ * resumed go ahead then.
+ *
+ * Use the loader from the main thread only.
+ */
+public class PhotoLoader {
+    private static final String TAG = "PhotoLoader";
+    // decoding is memory hungry, so only a couple at once
+    private static final int POOL_SIZE =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    // a sixteenth of the heap for bitmaps waiting to be reused
+    private static final long BITMAP_POOL_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    private static PhotoLoader sPhotoLoader;
+
+    private final Resources mResources;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final PhotoCache mCache;
+    private final PhotoWriter mWriter;
+    private final BitmapPool mBitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+    // how many views, cache entries and deliveries hold each decoded bitmap.
+    // weak, so a view dropped without being cleaned just loses its bitmap
+    // to the garbage collector instead of leaking it
+    private final WeakHashMap<Bitmap, int[]> mHolds = new WeakHashMap<Bitmap, int[]>();
+    // the request each view is waiting on
+    private final WeakHashMap<ImageView, Request> mRequests = new WeakHashMap<ImageView, Request>();
+    // loads waiting for the loader to be resumed
+    private final ArrayList<Request> mDeferred = new ArrayList<Request>();
+    // photos being decoded just to be cached, by key
+    private final HashMap<String, Request> mPrefetches = new HashMap<String, Request>();
+    private boolean mPaused;
+
+    private PhotoLoader(Context appContext) {
+        mResources = appContext.getResources();
+        mWriter = PhotoWriter.get(appContext);
+        mCache = new PhotoCache(appContext, new PhotoCache.Listener() {
+            public void onBitmapRemoved(Bitmap bitmap) {
+                release(bitmap);
+            }
+        });
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            public void run() {
+                                // stay out of the way of the UI thread
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    public static PhotoLoader get(Context c) {
+        if (sPhotoLoader == null) {
+            sPhotoLoader = new PhotoLoader(c.getApplicationContext());
+        }
+        return sPhotoLoader;
+    }
+
+    /**
+     * Decode the photo at path, scaled to fit target, and show it in
+     * target once it's ready. target is cleared in the meantime.
+     */
+    public void load(String path, ImageView target) {
+        cancel(target);
+
+        int width = getTargetSize(target.getWidth(), target.getLayoutParams() != null ?
+                target.getLayoutParams().width : 0, mResources.getDisplayMetrics().widthPixels);
+        int height = getTargetSize(target.getHeight(), target.getLayoutParams() != null ?
+                target.getLayoutParams().height : 0, mResources.getDisplayMetrics().heightPixels);
+        width = Math.max(1, width - target.getPaddingLeft() - target.getPaddingRight());
+        height = Math.max(1, height - target.getPaddingTop() - target.getPaddingBottom());
+
+        String key = PhotoCache.getKey(new File(path).getName(), width, height);
+        Bitmap cached;
+        synchronized (this) {
+            // hold it before the cache can evict it
+            cached = mCache.getFromMemory(key);
+            if (cached != null)
+                acquire(cached);
+        }
+        PictureUtils.cleanImageView(target);
+        if (cached != null) {
+            target.setImageDrawable(new BitmapDrawable(mResources, cached));
+            return;
+        }
+
+        Request request = new Request(path, key, width, height, target);
+        mRequests.put(target, request);
+        if (mPaused) {
+            mDeferred.add(request);
+        } else {
+            mExecutor.execute(request);
+        }
+    }
+
+    /**
+     * Decode the photo at path scaled to fit width by height into the
+     * cache, so a view that size can show it straight away later. Does
+     * nothing while the loader is paused.
+     */
+    public void prefetch(String path, int width, int height) {
+        if (mPaused)
+            return;
+        String key = PhotoCache.getKey(new File(path).getName(), width, height);
+        if (mPrefetches.containsKey(key) || mCache.isInMemory(key))
+            return;
+
+        Request request = new Request(path, key, width, height, null);
+        mPrefetches.put(key, request);
+        mExecutor.execute(request);
+    }
+
+    /** hold new loads back and drop prefetches until {@link #resume()} */
+    public void pause() {
+        mPaused = true;
+        for (Request request : mPrefetches.values()) {
+            request.mCancelled = true;
+            mExecutor.remove(request);
+        }
+        mPrefetches.clear();
+    }
+
+    /** start the loads held back while paused that are still wanted */
+    public void resume() {
+        mPaused = false;
+        for (Request request : mDeferred) {
+            ImageView target = request.mTarget.get();
+            if (!request.mCancelled && target != null && mRequests.get(target) == request)
+                mExecutor.execute(request);
+        }
+        mDeferred.clear();
+    }
+
+    /** stop loading into target, if it's loading anything */
+    public void cancel(ImageView target) {
+        Request request = mRequests.remove(target);
+        if (request != null) {
+            request.mCancelled = true;
+            // if it hasn't started, don't decode it at all
+            mExecutor.remove(request);
+        }
+    }
+
+    /**
+     * @return the size a view will be: its laid out size if it has one,
+     * else the size its layout asks for, else the screen's
+     */
+    private static int getTargetSize(int laidOut, int layoutParam, int screen) {
+        if (laidOut > 0)
+            return laidOut;
+        if (layoutParam > 0)
+            return layoutParam;
+        return screen;
+    }
+
+    public PhotoCache getCache() {
+        return mCache;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Cache a bitmap of the photo filename decoded elsewhere to fit width
+     * by height, as {@link #load(String, ImageView)} would have. The caller
+     * mustn't use bitmap afterwards. Safe to call from any thread.
+     */
+    public void putDecoded(String filename, int width, int height, Bitmap bitmap) {
+        // hold it while it's written to disk, in case the cache evicts it
+        acquire(bitmap);
+        acquire(bitmap);
+        mCache.put(PhotoCache.getKey(filename, width, height), bitmap);
+        release(bitmap);
+    }
+
+    /**
+     * Let go of a bitmap a view was showing. Once nothing holds it, it's
+     * pooled for reuse. Bitmaps the loader didn't decode are left alone.
+     * Safe to call from any thread.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        int[] holds = mHolds.get(bitmap);
+        if (holds == null)
+            return;
+        if (--holds[0] == 0) {
+            mHolds.remove(bitmap);
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Let go of cached and pooled bitmaps when the system is short of memory.
+     * @param level a level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        // trim the cache first, as what it lets go of may land in the pool
+        mCache.trimMemory(level);
+        mBitmapPool.trimMemory(level);
+    }
+
+    private synchronized void acquire(Bitmap bitmap) {
+        int[] holds = mHolds.get(bitmap);
+        if (holds == null) {
+            holds = new int[1];
+            mHolds.put(bitmap, holds);
+        }
+        holds[0]++;
+    }
+
+    private void finishPrefetch(Request request) {
+        if (mPrefetches.get(request.mKey) == request)
+            mPrefetches.remove(request.mKey);
+    }
+
+    private void deliver(Request request, Bitmap bitmap) {
+        ImageView target = request.mTarget.get();
+        if (request.mCancelled || target == null || mRequests.get(target) != request) {
+            release(bitmap);
+            return;
+        }
+        mRequests.remove(target);
+        // the request's hold on the bitmap passes to the view
+        PictureUtils.cleanImageView(target);
+        target.setImageDrawable(new BitmapDrawable(mResources, bitmap));
+    }
+
+    private class Request implements Runnable {
+        final String mPath;
+        final String mKey;
+        final int mWidth;
+        final int mHeight;
+        // null for a prefetch
+        final WeakReference<ImageView> mTarget;
+        volatile boolean mCancelled;
+
+        Request(String path, String key, int width, int height, ImageView target) {
+            mPath = path;
+            mKey = key;
+            mWidth = width;
+            mHeight = height;
+            mTarget = target != null ? new WeakReference<ImageView>(target) : null;
+        }
+
+        public void run() {
+            final Bitmap bitmap = mCancelled ? null : decode();
+            if (bitmap != null && mTarget != null && !mCancelled) {
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        deliver(Request.this, bitmap);
+                    }
+                });
+                return;
+            }
+
+            if (bitmap != null)
+                release(bitmap);
+            if (mTarget == null) {
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        finishPrefetch(Request.this);
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return the bitmap, now in the memory cache and held for this
+         * request, or null if it couldn't be decoded
+         */
+        private Bitmap decode() {
+            // a photo just taken may still be being saved
+            mWriter.awaitWrite(new File(mPath).getName());
+            Bitmap bitmap;
+            synchronized (PhotoLoader.this) {
+                // ...and cached while it was
+                bitmap = mCache.getFromMemory(mKey);
+                if (bitmap != null) {
+                    acquire(bitmap);
+                    return bitmap;
+                }
+            }
+            boolean fromDisk = true;
+            try {
+                bitmap = mCache.getFromDisk(mKey, mBitmapPool);
+                if (bitmap == null) {
+                    fromDisk = false;
+                    bitmap = PictureUtils.decodeScaledBitmap(mPath, mWidth, mHeight, mBitmapPool);
+                }
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "Out of memory decoding " + mPath);
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+                return null;
+            }
+            if (bitmap == null)
+                return null;
+
+            // one hold for this request and one for the cache
+            acquire(bitmap);
+            acquire(bitmap);
+            if (fromDisk) {
+                mCache.putInMemory(mKey, bitmap);
+            } else {
+                mCache.put(mKey, bitmap);
+            }
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Saves photos from the camera in the background, so the camera can
+ * finish as soon as a picture is taken.
+ *
+ * Each JPEG is streamed to a temporary file and renamed into place, so a
+ * photo file is either whole or not there. In the same pass the JPEG is
+ * decoded once, small, to make the crime photo and list thumbnails, which
+ * go straight into {@link PhotoLoader}'s cache. The first time the photo
+ * is shown then doesn't need the full image decoded.
+ *
+ * Until a photo is written it's pending: anything about to read it should
+ * call {@link #awaitWrite(String)} first. If a write fails, listeners are
+ * told, and {@link #hasFailed(String)} remembers it.
+ *
+ * Use the writer from the main thread, except where noted.
+ */
+public class PhotoWriter {
+    private static final String TAG = "PhotoWriter";
+    // write in chunks this big, so a large capture isn't one huge write
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public interface Listener {
+        /** the photo filename couldn't be saved, and won't be there */
+        void onPhotoWriteFailed(String filename);
+    }
+
+    private static PhotoWriter sPhotoWriter;
+
+    private final Context mAppContext;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // writes that haven't finished, by filename
+    private final HashMap<String, CountDownLatch> mPendingWrites = new HashMap<String, CountDownLatch>();
+    private final HashSet<String> mFailedWrites = new HashSet<String>();
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private PhotoWriter(Context appContext) {
+        mAppContext = appContext;
+    }
+
+    public static PhotoWriter get(Context c) {
+        if (sPhotoWriter == null) {
+            sPhotoWriter = new PhotoWriter(c.getApplicationContext());
+        }
+        return sPhotoWriter;
+    }
+
+    /**
+     * Save jpeg as the photo filename in the background. jpeg mustn't be
+     * changed afterwards.
+     */
+    public void write(final String filename, final byte[] jpeg) {
+        final CountDownLatch done = new CountDownLatch(1);
+        synchronized (mPendingWrites) {
+            mPendingWrites.put(filename, done);
+        }
+        final PhotoLoader loader = PhotoLoader.get(mAppContext);
+        final int photoSize = mAppContext.getResources()
+                .getDimensionPixelSize(R.dimen.crime_photo_size);
+        final int thumbnailSize = mAppContext.getResources()
+                .getDimensionPixelSize(R.dimen.crime_list_thumbnail_size);
+
+        mWriter.execute(new Runnable() {
+            public void run() {
+                boolean success = writeFile(filename, jpeg);
+                if (success)
+                    cacheThumbnails(loader, filename, jpeg, photoSize, thumbnailSize);
+
+                synchronized (mPendingWrites) {
+                    mPendingWrites.remove(filename);
+                }
+                done.countDown();
+                if (!success) {
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            mFailedWrites.add(filename);
+                            for (Listener l : new ArrayList<Listener>(mListeners)) {
+                                l.onPhotoWriteFailed(filename);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until the photo filename has been written, if it's being
+     * written. Call from a background thread.
+     */
+    public void awaitWrite(String filename) {
+        CountDownLatch done;
+        synchronized (mPendingWrites) {
+            done = mPendingWrites.get(filename);
+        }
+        if (done == null)
+            return;
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** whether saving the photo filename failed */
+    public boolean hasFailed(String filename) {
+        return mFailedWrites.contains(filename);
+    }
+
+    public void addListener(Listener l) {
+        mListeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        mListeners.remove(l);
+    }
+
+    private boolean writeFile(String filename, byte[] jpeg) {
+        File file = mAppContext.getFileStreamPath(filename);
+        File tempFile = mAppContext.getFileStreamPath(filename + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            for (int offset = 0; offset < jpeg.length; offset += CHUNK_SIZE) {
+                os.write(jpeg, offset, Math.min(CHUNK_SIZE, jpeg.length - offset));
+            }
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("Couldn't rename " + tempFile);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to file " + filename, e);
+            tempFile.delete();
+            return false;
+        } finally {
+            try {
+                if (os != null)
+                    os.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing file " + filename, e);
+            }
+        }
+    }
+
+    private void cacheThumbnails(PhotoLoader loader, String filename, byte[] jpeg,
+            int photoSize, int thumbnailSize) {
+        try {
+            // decode the JPEG once, at the bigger size, and shrink that for the list
+            Bitmap photo = PictureUtils.decodeScaledBitmap(jpeg, photoSize, photoSize,
+                    loader.getBitmapPool());
+            if (photo == null)
+                return;
+            Bitmap thumbnail = PictureUtils.scaleBitmap(photo, thumbnailSize, thumbnailSize,
+                    loader.getBitmapPool());
+            loader.putDecoded(filename, photoSize, photoSize, photo);
+            loader.putDecoded(filename, thumbnailSize, thumbnailSize, thumbnail);
+        } catch (OutOfMemoryError e) {
+            // the photo is saved; it'll be decoded when it's shown instead
+            Log.e(TAG, "Out of memory making thumbnails for " + filename);
+        }
+    }
+}
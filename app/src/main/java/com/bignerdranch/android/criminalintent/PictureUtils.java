@@ -1,56 +1,167 @@
 package com.bignerdranch.android.criminalintent;
 
-import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
-import android.view.Display;
-
+import android.os.Build;
 import android.widget.ImageView;
 
 public class PictureUtils {
     /**
-     * Get a BitmapDrawable from a local file that is scaled down
-     * to fit the current Window size.
+     * Decode a local file scaled down to fit inside targetWidth by
+     * targetHeight, keeping its aspect ratio. Images already smaller than
+     * that aren't scaled up. Safe to call from any thread.
+     * @return the bitmap, or null if the file couldn't be decoded
+     */
+    public static Bitmap decodeScaledBitmap(String path, int targetWidth, int targetHeight) {
+        return decodeScaledBitmap(path, targetWidth, targetHeight, null);
+    }
+
+    /**
+     * Like {@link #decodeScaledBitmap(String, int, int)}, but decodes into
+     * bitmaps from pool where it can, and puts the intermediate bitmap
+     * back there. The result is mutable, so it can be pooled later too.
+     */
+    public static Bitmap decodeScaledBitmap(String path, int targetWidth, int targetHeight,
+            BitmapPool pool) {
+        return decodeScaled(path, null, targetWidth, targetHeight, pool);
+    }
+
+    /**
+     * Like {@link #decodeScaledBitmap(String, int, int, BitmapPool)}, for
+     * an encoded image already in memory, such as a camera's JPEG.
      */
-    @SuppressWarnings("deprecation")
-    public static BitmapDrawable getScaledDrawable(Activity a, String path) {
-        Display display = a.getWindowManager().getDefaultDisplay();
-        float destWidth = display.getWidth();
-        float destHeight = display.getHeight();
+    public static Bitmap decodeScaledBitmap(byte[] data, int targetWidth, int targetHeight,
+            BitmapPool pool) {
+        return decodeScaled(null, data, targetWidth, targetHeight, pool);
+    }
+
+    /**
+     * Draw source scaled down to fit inside targetWidth by targetHeight
+     * into a new mutable bitmap, from pool if one fits. source is left as
+     * it is, and isn't scaled up if it's already smaller.
+     */
+    public static Bitmap scaleBitmap(Bitmap source, int targetWidth, int targetHeight,
+            BitmapPool pool) {
+        float scale = Math.min(1, Math.min((float)targetWidth / source.getWidth(),
+                (float)targetHeight / source.getHeight()));
+        int width = Math.max(1, Math.round(source.getWidth() * scale));
+        int height = Math.max(1, Math.round(source.getHeight() * scale));
+        Bitmap scaled = pool != null ? pool.get(width, height, Bitmap.Config.ARGB_8888) : null;
+        if (scaled == null)
+            scaled = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(source, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return scaled;
+    }
 
-        // read in the dimensions of the image on disk
+    /**
+     * Decode a local file at full size, into a bitmap from pool if one
+     * fits. The result is mutable.
+     * @return the bitmap, or null if the file couldn't be decoded
+     */
+    public static Bitmap decodeBitmap(String path, BitmapPool pool) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int width = options.outWidth;
+        int height = options.outHeight;
 
-        float srcWidth = options.outWidth;
-        float srcHeight = options.outHeight;
+        return decode(path, null, new BitmapFactory.Options(), width, height, pool);
+    }
 
-        int inSampleSize = 1;
-        if (srcHeight > destHeight || srcWidth > destWidth) {
-            if (srcWidth > srcHeight) {
-                inSampleSize = Math.round((float)srcHeight / (float)destHeight);
-            } else {
-                inSampleSize = Math.round((float)srcWidth / (float)destWidth);
-            }
-        }
+    /** decode from path, or from data if path is null */
+    private static Bitmap decodeScaled(String path, byte[] data,
+            int targetWidth, int targetHeight, BitmapPool pool) {
+        // read in the dimensions of the image
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(path, data, options);
+        int srcWidth = options.outWidth;
+        int srcHeight = options.outHeight;
+        if (srcWidth <= 0 || srcHeight <= 0)
+            return null;
 
+        int inSampleSize = calculateInSampleSize(srcWidth, srcHeight, targetWidth, targetHeight);
         options = new BitmapFactory.Options();
         options.inSampleSize = inSampleSize;
+        Bitmap sampled = decode(path, data, options, (srcWidth + inSampleSize - 1) / inSampleSize,
+                (srcHeight + inSampleSize - 1) / inSampleSize, pool);
+        if (sampled == null)
+            return null;
+
+        // sampling only gets within a factor of two, so scale the rest of the way
+        if (sampled.getWidth() <= targetWidth && sampled.getHeight() <= targetHeight)
+            return sampled;
+        Bitmap scaled = scaleBitmap(sampled, targetWidth, targetHeight, pool);
+        if (pool != null) {
+            pool.put(sampled);
+        } else {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    private static Bitmap decode(String path, byte[] data, BitmapFactory.Options options,
+            int width, int height, BitmapPool pool) {
+        options.inMutable = true;
+        // before KitKat only an unsampled decode can reuse a bitmap
+        if (pool != null && (options.inSampleSize <= 1 ||
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+            options.inBitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        }
+        if (options.inBitmap != null) {
+            try {
+                Bitmap bitmap = decode(path, data, options);
+                if (bitmap != null)
+                    return bitmap;
+            } catch (IllegalArgumentException e) {
+                // the decoder couldn't use it after all
+            }
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+        }
+        return decode(path, data, options);
+    }
+
+    private static Bitmap decode(String path, byte[] data, BitmapFactory.Options options) {
+        if (path != null)
+            return BitmapFactory.decodeFile(path, options);
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
 
-        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
-        return new BitmapDrawable(a.getResources(), bitmap);
+    /**
+     * @return the largest power of two to sample a srcWidth by srcHeight
+     * image by, so that it still covers what fitting it inside
+     * targetWidth by targetHeight would show
+     */
+    public static int calculateInSampleSize(int srcWidth, int srcHeight,
+            int targetWidth, int targetHeight) {
+        // fitting inside the target shrinks both sides by the larger ratio
+        float ratio = Math.max((float)srcWidth / Math.max(1, targetWidth),
+                (float)srcHeight / Math.max(1, targetHeight));
+        int inSampleSize = 1;
+        while (inSampleSize * 2 <= ratio) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
     }
 
     public static void cleanImageView(ImageView imageView) {
         if (!(imageView.getDrawable() instanceof BitmapDrawable)) 
             return;
 
-        // clean up the view's image for the sake of memory
+        // clean up the view's image for the sake of memory. it may still be
+        // in PhotoCache, so let PhotoLoader decide whether it can be reused
         BitmapDrawable b = (BitmapDrawable)imageView.getDrawable();
-        b.getBitmap().recycle();
         imageView.setImageDrawable(null);
+        PhotoLoader.get(imageView.getContext()).release(b.getBitmap());
     }
 }
 
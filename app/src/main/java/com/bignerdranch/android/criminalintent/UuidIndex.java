@@ -0,0 +1,159 @@
+package com.bignerdranch.android.criminalintent;
+
+import java.util.Arrays;
+
+/**
+ * Maps UUIDs to non-negative int indices using open addressing over
+ * parallel primitive arrays. Keys are the two longs of the UUID, so
+ * lookups never allocate or touch UUID objects.
+ */
+class UuidIndex {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int NO_INDEX = -1;
+
+    private long[] mMostSigBits;
+    private long[] mLeastSigBits;
+    // NO_INDEX marks an empty slot
+    private int[] mIndices;
+    private int mMask;
+    private int mSize;
+    private int mResizeThreshold;
+
+    public UuidIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public UuidIndex(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return The index stored for the UUID, or -1 if there is none.
+     */
+    public int get(long mostSigBits, long leastSigBits) {
+        int slot = slotFor(mostSigBits, leastSigBits);
+        int index;
+        while ((index = mIndices[slot]) != NO_INDEX) {
+            if (mMostSigBits[slot] == mostSigBits && mLeastSigBits[slot] == leastSigBits) {
+                return index;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NO_INDEX;
+    }
+
+    /**
+     * Stores an index for the UUID, replacing any existing one.
+     */
+    public void put(long mostSigBits, long leastSigBits, int index) {
+        int slot = slotFor(mostSigBits, leastSigBits);
+        while (mIndices[slot] != NO_INDEX) {
+            if (mMostSigBits[slot] == mostSigBits && mLeastSigBits[slot] == leastSigBits) {
+                mIndices[slot] = index;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        mMostSigBits[slot] = mostSigBits;
+        mLeastSigBits[slot] = leastSigBits;
+        mIndices[slot] = index;
+        if (++mSize > mResizeThreshold) {
+            rehash(mIndices.length << 1);
+        }
+    }
+
+    /**
+     * @return The index that was stored for the UUID, or -1 if there was none.
+     */
+    public int remove(long mostSigBits, long leastSigBits) {
+        int slot = slotFor(mostSigBits, leastSigBits);
+        int index;
+        while ((index = mIndices[slot]) != NO_INDEX) {
+            if (mMostSigBits[slot] == mostSigBits && mLeastSigBits[slot] == leastSigBits) {
+                shiftEntriesBack(slot);
+                mSize--;
+                return index;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NO_INDEX;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mIndices, NO_INDEX);
+        mSize = 0;
+    }
+
+    /**
+     * Closes the gap left at a removed slot by pulling back later entries
+     * in the same probe chain, so no tombstones are needed.
+     */
+    private void shiftEntriesBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mMask;
+            if (mIndices[slot] == NO_INDEX) {
+                break;
+            }
+            int home = slotFor(mMostSigBits[slot], mLeastSigBits[slot]);
+            // Leave the entry alone if its home lies cyclically in (gap, slot]
+            boolean homeBetween = gap <= slot
+                    ? (gap < home && home <= slot)
+                    : (gap < home || home <= slot);
+            if (!homeBetween) {
+                mMostSigBits[gap] = mMostSigBits[slot];
+                mLeastSigBits[gap] = mLeastSigBits[slot];
+                mIndices[gap] = mIndices[slot];
+                gap = slot;
+            }
+        }
+        mIndices[gap] = NO_INDEX;
+    }
+
+    private int slotFor(long mostSigBits, long leastSigBits) {
+        long hash = (mostSigBits ^ (leastSigBits * 31)) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldMostSigBits = mMostSigBits;
+        long[] oldLeastSigBits = mLeastSigBits;
+        int[] oldIndices = mIndices;
+        allocate(newCapacity);
+
+        for (int i = 0; i < oldIndices.length; i++) {
+            if (oldIndices[i] != NO_INDEX) {
+                int slot = slotFor(oldMostSigBits[i], oldLeastSigBits[i]);
+                while (mIndices[slot] != NO_INDEX) {
+                    slot = (slot + 1) & mMask;
+                }
+                mMostSigBits[slot] = oldMostSigBits[i];
+                mLeastSigBits[slot] = oldLeastSigBits[i];
+                mIndices[slot] = oldIndices[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mMostSigBits = new long[capacity];
+        mLeastSigBits = new long[capacity];
+        mIndices = new int[capacity];
+        Arrays.fill(mIndices, NO_INDEX);
+        mMask = capacity - 1;
+        // Keep the load factor at or below 0.75
+        mResizeThreshold = capacity - (capacity >>> 2);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity - (capacity >>> 2) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
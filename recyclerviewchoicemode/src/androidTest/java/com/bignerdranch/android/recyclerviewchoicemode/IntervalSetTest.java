@@ -0,0 +1,156 @@
+package com.bignerdranch.android.recyclerviewchoicemode;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link IntervalSet} against a {@link BitSet} holding the same
+ * values, and that its runs stay sorted, non-overlapping and non-adjacent.
+ */
+public class IntervalSetTest extends TestCase {
+    private static final int LIMIT = 200;
+
+    public void testAddMergesTouchingAndOverlappingRuns() {
+        IntervalSet set = new IntervalSet();
+        set.add(10, 20);
+        set.add(30, 40);
+        assertRuns(set, 10, 20, 30, 40);
+
+        set.add(20, 25);
+        assertRuns(set, 10, 25, 30, 40);
+
+        set.add(5, 10);
+        assertRuns(set, 5, 25, 30, 40);
+
+        set.add(24, 31);
+        assertRuns(set, 5, 40);
+        assertEquals(35, set.size());
+    }
+
+    public void testAddSpanningSeveralRuns() {
+        IntervalSet set = new IntervalSet();
+        for (int i = 0; i < 10; i++) {
+            set.add(i * 10, i * 10 + 5);
+        }
+        set.add(12, 73);
+        assertRuns(set, 0, 5, 10, 75, 80, 85, 90, 95);
+        assertEquals(80, set.size());
+    }
+
+    public void testEmptyRangesAreIgnored() {
+        IntervalSet set = new IntervalSet();
+        set.add(5, 5);
+        set.add(8, 3);
+        assertRuns(set);
+
+        set.add(0, 10);
+        set.remove(4, 4);
+        set.remove(7, 2);
+        assertRuns(set, 0, 10);
+    }
+
+    public void testRemoveSplitsRun() {
+        IntervalSet set = new IntervalSet();
+        set.add(0, 100);
+        set.remove(40, 60);
+        assertRuns(set, 0, 40, 60, 100);
+        assertEquals(80, set.size());
+    }
+
+    public void testRemoveTrimsAndDropsRuns() {
+        IntervalSet set = new IntervalSet();
+        set.add(0, 10);
+        set.add(20, 30);
+        set.add(40, 50);
+        set.remove(5, 45);
+        assertRuns(set, 0, 5, 45, 50);
+
+        set.remove(0, 5);
+        assertRuns(set, 45, 50);
+
+        set.remove(60, 70);
+        assertRuns(set, 45, 50);
+    }
+
+    public void testInvert() {
+        IntervalSet set = new IntervalSet();
+        set.invert(10);
+        assertRuns(set, 0, 10);
+
+        set.clear();
+        set.add(0, 3);
+        set.add(5, 7);
+        set.add(9, 20);
+        set.invert(12);
+        assertRuns(set, 3, 5, 7, 9);
+        assertEquals(4, set.size());
+
+        set.invert(12);
+        assertRuns(set, 0, 3, 5, 7, 9, 12);
+    }
+
+    public void testSetRunsMergesAdjacentRuns() {
+        IntervalSet set = new IntervalSet();
+        set.setRuns(new int[] { 0, 5, 5, 10, 20, 30 });
+        assertRuns(set, 0, 10, 20, 30);
+        assertEquals(20, set.size());
+
+        IntervalSet copy = new IntervalSet();
+        copy.add(100, 200);
+        copy.setRuns(set.getRuns());
+        assertRuns(copy, 0, 10, 20, 30);
+    }
+
+    public void testRandomOperations() {
+        Random random = new Random(1);
+        for (int test = 0; test < 500; test++) {
+            IntervalSet set = new IntervalSet();
+            BitSet model = new BitSet();
+            for (int op = 0; op < 40; op++) {
+                int start = random.nextInt(LIMIT);
+                int end = start + random.nextInt(LIMIT / 4);
+                int kind = random.nextInt(10);
+                if (kind < 4) {
+                    set.add(start, end);
+                    model.set(start, end);
+                } else if (kind < 8) {
+                    set.remove(start, end);
+                    model.clear(start, end);
+                } else if (kind == 8) {
+                    int limit = random.nextInt(LIMIT + 1);
+                    set.invert(limit);
+                    model.clear(limit, Integer.MAX_VALUE);
+                    model.flip(0, limit);
+                } else {
+                    IntervalSet copy = new IntervalSet();
+                    copy.setRuns(set.getRuns());
+                    set = copy;
+                }
+                check(set, model);
+            }
+        }
+    }
+
+    private static void check(IntervalSet set, BitSet model) {
+        String message = model + " vs " + Arrays.toString(set.getRuns());
+        assertEquals(message, model.cardinality(), set.size());
+        for (int i = 0; i < LIMIT * 2; i++) {
+            assertEquals(message + " at " + i, model.get(i), set.contains(i));
+        }
+
+        int previousEnd = -1;
+        for (int run = 0; run < set.getRunCount(); run++) {
+            assertTrue(message, set.runStart(run) > previousEnd);
+            assertTrue(message, set.runStart(run) < set.runEnd(run));
+            previousEnd = set.runEnd(run);
+        }
+    }
+
+    private static void assertRuns(IntervalSet set, int... runs) {
+        assertEquals(Arrays.toString(runs), Arrays.toString(set.getRuns()));
+        assertEquals(runs.length / 2, set.getRunCount());
+    }
+}
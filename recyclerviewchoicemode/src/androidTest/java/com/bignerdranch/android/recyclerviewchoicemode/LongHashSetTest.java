@@ -0,0 +1,129 @@
+package com.bignerdranch.android.recyclerviewchoicemode;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link LongHashSet} against a {@link HashSet} holding the same
+ * keys.
+ */
+public class LongHashSetTest extends TestCase {
+
+    public void testZeroKey() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertFalse(set.remove(0));
+
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+        assertTrue(Arrays.equals(new long[] { 0 }, set.toArray()));
+
+        assertTrue(set.add(5));
+        assertTrue(set.remove(0));
+        assertFalse(set.contains(0));
+        assertTrue(set.contains(5));
+        assertEquals(1, set.size());
+    }
+
+    public void testRemoveInsideProbeChains() {
+        // a small key range in a small table makes long probe chains
+        Random random = new Random(1);
+        for (int test = 0; test < 200; test++) {
+            LongHashSet set = new LongHashSet(4);
+            Set<Long> model = new HashSet<Long>();
+            for (int i = 0; i < 12; i++) {
+                long key = random.nextInt(64) - 32;
+                set.add(key);
+                model.add(key);
+            }
+            Long[] keys = model.toArray(new Long[model.size()]);
+            for (Long key : keys) {
+                assertTrue(set.remove(key));
+                model.remove(key);
+                check(set, model, 64);
+            }
+            assertTrue(set.isEmpty());
+        }
+    }
+
+    public void testGrowth() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> model = new HashSet<Long>();
+        for (long key = -500; key < 500; key++) {
+            assertTrue(set.add(key * 1000003));
+            model.add(key * 1000003);
+        }
+        assertEquals(1000, set.size());
+        for (Long key : model) {
+            assertTrue(set.contains(key));
+        }
+        assertFalse(set.contains(1));
+    }
+
+    public void testCopyIntoStopsWhenFull() {
+        LongHashSet set = new LongHashSet();
+        set.add(0);
+        set.add(1);
+        set.add(2);
+        long[] out = new long[2];
+        assertEquals(2, set.copyInto(out));
+        assertEquals(3, set.copyInto(new long[5]));
+    }
+
+    public void testClear() {
+        LongHashSet set = new LongHashSet();
+        set.add(0);
+        set.add(7);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(7));
+        assertTrue(set.add(7));
+    }
+
+    public void testRandomOperations() {
+        Random random = new Random(2);
+        for (int test = 0; test < 100; test++) {
+            LongHashSet set = new LongHashSet();
+            Set<Long> model = new HashSet<Long>();
+            int range = 1 + random.nextInt(200);
+            for (int op = 0; op < 500; op++) {
+                long key = random.nextInt(range) - range / 2;
+                if (random.nextInt(3) == 0) {
+                    assertEquals(model.remove(key), set.remove(key));
+                } else {
+                    assertEquals(model.add(key), set.add(key));
+                }
+            }
+            check(set, model, range);
+        }
+    }
+
+    private static void check(LongHashSet set, Set<Long> model, int range) {
+        assertEquals(model.size(), set.size());
+        assertEquals(model.isEmpty(), set.isEmpty());
+        for (long key = -range; key <= range; key++) {
+            assertEquals("key " + key, model.contains(key), set.contains(key));
+        }
+
+        Set<Long> copied = new HashSet<Long>();
+        for (long key : set.toArray()) {
+            copied.add(key);
+        }
+        assertEquals(model, copied);
+
+        final Set<Long> visited = new HashSet<Long>();
+        set.forEach(new MultiSelector.IdVisitor() {
+            public void visitId(long id) {
+                assertTrue("visited twice: " + id, visited.add(id));
+            }
+        });
+        assertEquals(model, visited);
+    }
+}
@@ -4,8 +4,22 @@ import android.view.View;
 
 /**
  * ViewHolder with a callback for when it is rebound. Please use judiciously.
+ *
+ * RecyclerView touches holder flags and offsets positions many times during
+ * a single layout pass. Reports are de-duplicated so that a holder only calls
+ * {@link #onRebind()} when its position or item id differ from what it last
+ * reported. Counts of reported and suppressed rebinds are kept process-wide
+ * to help tune this; see {@link #getReportedRebindCount()}.
  */
 public abstract class RebindReportingHolder extends RecyclerView.ViewHolder {
+    private static final int REBIND_FLAGS =
+            FLAG_BOUND | FLAG_CHANGED | FLAG_UPDATE | FLAG_RETURNED_FROM_SCRAP;
+
+    private static int sReportedRebindCount;
+    private static int sSuppressedRebindCount;
+
+    private int mReportedPosition = RecyclerView.NO_POSITION;
+    private long mReportedItemId = RecyclerView.NO_ID;
 
     public RebindReportingHolder(View itemView) {
         super(itemView);
@@ -16,11 +30,31 @@ public abstract class RebindReportingHolder extends RecyclerView.ViewHolder {
      */
     protected abstract void onRebind();
 
+    /**
+     * @return The number of rebinds reported through {@link #onRebind()}
+     * across all holders since the last {@link #resetRebindCounts()}.
+     */
+    public static int getReportedRebindCount() {
+        return sReportedRebindCount;
+    }
+
+    /**
+     * @return The number of rebinds that were detected but not reported
+     * because the holder's position and item id had not changed.
+     */
+    public static int getSuppressedRebindCount() {
+        return sSuppressedRebindCount;
+    }
+
+    public static void resetRebindCounts() {
+        sReportedRebindCount = 0;
+        sSuppressedRebindCount = 0;
+    }
+
     @Override
     void setFlags(int flags, int mask) {
         super.setFlags(flags, mask);
-        int setFlags = mask & flags;
-        checkFlags(setFlags);
+        checkFlags(mask & flags);
     }
 
     @Override
@@ -29,25 +63,37 @@ public abstract class RebindReportingHolder extends RecyclerView.ViewHolder {
         checkFlags(flags);
     }
 
+    @Override
+    void offsetPosition(int offset, boolean applyToPreLayout) {
+        super.offsetPosition(offset, applyToPreLayout);
+        reportRebind();
+    }
+
+    @Override
+    void resetInternal() {
+        super.resetInternal();
+        // Recycled; whatever is bound next must be reported
+        mReportedPosition = RecyclerView.NO_POSITION;
+        mReportedItemId = RecyclerView.NO_ID;
+    }
+
     private void checkFlags(int setFlags) {
-        if (isRelevantFlagSet(setFlags)) {
-            onRebind();
+        if ((setFlags & REBIND_FLAGS) != 0) {
+            reportRebind();
         }
     }
 
-    private static boolean isRelevantFlagSet(int flag) {
-        for (Integer value : new int[] { FLAG_BOUND, FLAG_CHANGED, FLAG_UPDATE, FLAG_RETURNED_FROM_SCRAP }) {
-            if ((flag & value) == value) {
-                return true;
-            }
+    private void reportRebind() {
+        int position = getPosition();
+        long itemId = getItemId();
+        if (position == mReportedPosition && itemId == mReportedItemId) {
+            sSuppressedRebindCount++;
+            return;
         }
 
-        return false;
-    }
-
-    @Override
-    void offsetPosition(int offset, boolean applyToPreLayout) {
-        super.offsetPosition(offset, applyToPreLayout);
+        mReportedPosition = position;
+        mReportedItemId = itemId;
+        sReportedRebindCount++;
         onRebind();
     }
 }
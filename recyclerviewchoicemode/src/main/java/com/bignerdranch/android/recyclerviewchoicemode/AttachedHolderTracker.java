@@ -0,0 +1,88 @@
+package com.bignerdranch.android.recyclerviewchoicemode;
+
+/**
+ * Tracks the holders whose item views are currently attached to a window.
+ *
+ * Holders are added and removed from attach/detach callbacks, so the
+ * tracker only ever holds what is on screen (plus whatever RecyclerView
+ * keeps attached for layout). Nothing is allocated per bind, and lookups
+ * and iteration scale with the number of attached holders.
+ */
+class AttachedHolderTracker {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private SelectableHolder[] mHolders = new SelectableHolder[INITIAL_CAPACITY];
+    private int mCount;
+
+    /**
+     * Starts tracking a holder. Tracking the same holder twice has no effect.
+     */
+    public void attachHolder(SelectableHolder holder) {
+        if (indexOf(holder) >= 0) {
+            return;
+        }
+        if (mCount == mHolders.length) {
+            SelectableHolder[] grown = new SelectableHolder[mHolders.length * 2];
+            System.arraycopy(mHolders, 0, grown, 0, mCount);
+            mHolders = grown;
+        }
+        mHolders[mCount++] = holder;
+    }
+
+    public void detachHolder(SelectableHolder holder) {
+        int index = indexOf(holder);
+        if (index < 0) {
+            return;
+        }
+        // Order doesn't matter, so fill the hole with the last holder
+        mHolders[index] = mHolders[--mCount];
+        mHolders[mCount] = null;
+    }
+
+    /**
+     * Returns the attached holder with a given position. If non-null, the returned
+     * holder is guaranteed to have getPosition() == position.
+     */
+    public SelectableHolder getHolder(int position) {
+        for (int i = 0; i < mCount; i++) {
+            if (mHolders[i].getPosition() == position) {
+                return mHolders[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the attached holder with a given stable id. If non-null, the returned
+     * holder is guaranteed to have getItemId() == id.
+     */
+    public SelectableHolder getHolderForId(long id) {
+        for (int i = 0; i < mCount; i++) {
+            if (mHolders[i].getItemId() == id) {
+                return mHolders[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of attached holders; use with {@link #getHolderAt(int)}
+     * to iterate without copying.
+     */
+    public int getHolderCount() {
+        return mCount;
+    }
+
+    public SelectableHolder getHolderAt(int index) {
+        return mHolders[index];
+    }
+
+    private int indexOf(SelectableHolder holder) {
+        for (int i = 0; i < mCount; i++) {
+            if (mHolders[i] == holder) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,214 @@
+package com.bignerdranch.android.recyclerviewchoicemode;
+
+/**
+ * A set of non-negative ints stored as sorted, non-overlapping,
+ * non-adjacent half-open runs [start, end).
+ *
+ * Memory is proportional to the number of runs rather than the number
+ * of members, so "everything from 0 to 50,000" costs a single run.
+ */
+class IntervalSet {
+    private static final int INITIAL_RUN_CAPACITY = 4;
+
+    // Run i occupies mBounds[2 * i] (start, inclusive) and mBounds[2 * i + 1] (end, exclusive)
+    private int[] mBounds = new int[INITIAL_RUN_CAPACITY * 2];
+    private int mRunCount;
+    private int mSize;
+
+    public boolean contains(int value) {
+        int run = findRunStartingAtOrBefore(value);
+        return run >= 0 && value < runEnd(run);
+    }
+
+    /**
+     * Adds every value in [start, end).
+     */
+    public void add(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        // First run that ends at or after start (touching runs get merged)
+        int first = findRunStartingAtOrBefore(start);
+        if (first < 0 || runEnd(first) < start) {
+            first++;
+        }
+        // Last run that starts at or before end
+        int last = findRunStartingAtOrBefore(end);
+
+        int newStart = start;
+        int newEnd = end;
+        for (int i = first; i <= last; i++) {
+            mSize -= runEnd(i) - runStart(i);
+        }
+        if (first <= last) {
+            newStart = Math.min(start, runStart(first));
+            newEnd = Math.max(end, runEnd(last));
+        }
+
+        replaceRuns(first, last, 1);
+        setRun(first, newStart, newEnd);
+        mSize += newEnd - newStart;
+    }
+
+    /**
+     * Removes every value in [start, end).
+     */
+    public void remove(int start, int end) {
+        if (start >= end || mRunCount == 0) {
+            return;
+        }
+
+        // First run that ends after start
+        int first = findRunStartingAtOrBefore(start);
+        if (first < 0 || runEnd(first) <= start) {
+            first++;
+        }
+        // Last run that starts before end
+        int last = findRunStartingAtOrBefore(end - 1);
+        if (first > last) {
+            return;
+        }
+
+        int leftStart = runStart(first);
+        int rightEnd = runEnd(last);
+        for (int i = first; i <= last; i++) {
+            mSize -= runEnd(i) - runStart(i);
+        }
+
+        boolean keepLeft = leftStart < start;
+        boolean keepRight = rightEnd > end;
+        int keptRuns = (keepLeft ? 1 : 0) + (keepRight ? 1 : 0);
+        replaceRuns(first, last, keptRuns);
+
+        int run = first;
+        if (keepLeft) {
+            setRun(run++, leftStart, start);
+            mSize += start - leftStart;
+        }
+        if (keepRight) {
+            setRun(run, end, rightEnd);
+            mSize += rightEnd - end;
+        }
+    }
+
+    /**
+     * Replaces the contents of this set with its complement within [0, limit).
+     */
+    public void invert(int limit) {
+        remove(limit, Integer.MAX_VALUE);
+
+        int[] inverted = new int[(mRunCount + 1) * 2];
+        int invertedCount = 0;
+        int cursor = 0;
+        for (int i = 0; i < mRunCount; i++) {
+            if (runStart(i) > cursor) {
+                inverted[invertedCount * 2] = cursor;
+                inverted[invertedCount * 2 + 1] = runStart(i);
+                invertedCount++;
+            }
+            cursor = runEnd(i);
+        }
+        if (cursor < limit) {
+            inverted[invertedCount * 2] = cursor;
+            inverted[invertedCount * 2 + 1] = limit;
+            invertedCount++;
+        }
+
+        mBounds = inverted;
+        mRunCount = invertedCount;
+        mSize = limit - mSize;
+    }
+
+    /**
+     * @return The runs packed as start/end pairs, suitable for
+     * {@link #setRuns(int[])}.
+     */
+    public int[] getRuns() {
+        int[] runs = new int[mRunCount * 2];
+        System.arraycopy(mBounds, 0, runs, 0, runs.length);
+        return runs;
+    }
+
+    /**
+     * Replaces the contents of this set with runs packed as start/end
+     * pairs, as returned by {@link #getRuns()}.
+     */
+    public void setRuns(int[] runs) {
+        clear();
+        for (int i = 0; i + 1 < runs.length; i += 2) {
+            add(runs[i], runs[i + 1]);
+        }
+    }
+
+    public void clear() {
+        mRunCount = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of values in the set.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int getRunCount() {
+        return mRunCount;
+    }
+
+    public int runStart(int run) {
+        return mBounds[run * 2];
+    }
+
+    public int runEnd(int run) {
+        return mBounds[run * 2 + 1];
+    }
+
+    private void setRun(int run, int start, int end) {
+        mBounds[run * 2] = start;
+        mBounds[run * 2 + 1] = end;
+    }
+
+    /**
+     * Binary searches for the last run whose start is <= value.
+     * @return The run index, or -1 if every run starts after value.
+     */
+    private int findRunStartingAtOrBefore(int value) {
+        int low = 0;
+        int high = mRunCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (runStart(mid) <= value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Replaces runs [first, last] with newCount uninitialized runs,
+     * shifting later runs as needed.
+     */
+    private void replaceRuns(int first, int last, int newCount) {
+        int oldCount = last - first + 1;
+        int delta = newCount - oldCount;
+        if (delta == 0) {
+            return;
+        }
+
+        int newRunCount = mRunCount + delta;
+        if (newRunCount * 2 > mBounds.length) {
+            int[] grown = new int[Math.max(newRunCount * 2, mBounds.length * 2)];
+            System.arraycopy(mBounds, 0, grown, 0, mRunCount * 2);
+            mBounds = grown;
+        }
+
+        int tailStart = last + 1;
+        System.arraycopy(mBounds, tailStart * 2,
+                mBounds, (tailStart + delta) * 2, (mRunCount - tailStart) * 2);
+        mRunCount = newRunCount;
+    }
+}
@@ -0,0 +1,226 @@
+package com.bignerdranch.android.recyclerviewchoicemode;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs backed by a single open-addressing table.
+ *
+ * Lookups, insertions and removals are O(1) on average and never
+ * allocate; the table only reallocates when it grows. Removal uses
+ * backward-shift deletion, so there are no tombstones to clean up.
+ *
+ * Zero is used to mark empty slots, so membership of the key zero
+ * is tracked separately.
+ */
+class LongHashSet {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final long EMPTY = 0L;
+
+    private long[] mKeys;
+    private int mMask;
+    private int mSize;
+    private int mResizeThreshold;
+    private boolean mHasEmptyKey;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return mHasEmptyKey;
+        }
+
+        long[] keys = mKeys;
+        int slot = slotFor(key);
+        long existing;
+        while ((existing = keys[slot]) != EMPTY) {
+            if (existing == key) {
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the key was not already present.
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            if (mHasEmptyKey) {
+                return false;
+            }
+            mHasEmptyKey = true;
+            mSize++;
+            return true;
+        }
+
+        long[] keys = mKeys;
+        int slot = slotFor(key);
+        long existing;
+        while ((existing = keys[slot]) != EMPTY) {
+            if (existing == key) {
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        keys[slot] = key;
+        if (++mSize > mResizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the key was present.
+     */
+    public boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!mHasEmptyKey) {
+                return false;
+            }
+            mHasEmptyKey = false;
+            mSize--;
+            return true;
+        }
+
+        long[] keys = mKeys;
+        int slot = slotFor(key);
+        long existing;
+        while ((existing = keys[slot]) != EMPTY) {
+            if (existing == key) {
+                shiftKeysBack(slot);
+                mSize--;
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Copies as many keys as fit into out, in no particular order.
+     * @return The number of keys copied.
+     */
+    public int copyInto(long[] out) {
+        int count = 0;
+        if (mHasEmptyKey && count < out.length) {
+            out[count++] = EMPTY;
+        }
+        long[] keys = mKeys;
+        for (int i = 0; i < keys.length && count < out.length; i++) {
+            if (keys[i] != EMPTY) {
+                out[count++] = keys[i];
+            }
+        }
+        return count;
+    }
+
+    public long[] toArray() {
+        long[] keys = new long[mSize];
+        copyInto(keys);
+        return keys;
+    }
+
+    /**
+     * Calls the visitor once for each key, in no particular order.
+     * The set must not be modified while visiting.
+     */
+    public void forEach(MultiSelector.IdVisitor visitor) {
+        if (mHasEmptyKey) {
+            visitor.visitId(EMPTY);
+        }
+        long[] keys = mKeys;
+        for (long key : keys) {
+            if (key != EMPTY) {
+                visitor.visitId(key);
+            }
+        }
+    }
+
+    public void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        Arrays.fill(mKeys, EMPTY);
+        mHasEmptyKey = false;
+        mSize = 0;
+    }
+
+    /**
+     * Closes the gap left at a removed slot by pulling back any later
+     * keys in the same probe chain that would otherwise become unreachable.
+     */
+    private void shiftKeysBack(int gap) {
+        long[] keys = mKeys;
+        int mask = mMask;
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long key = keys[slot];
+            if (key == EMPTY) {
+                break;
+            }
+            int home = slotFor(key);
+            // Move the key into the gap unless its home lies cyclically in (gap, slot]
+            boolean homeBetween = gap <= slot
+                    ? (gap < home && home <= slot)
+                    : (gap < home || home <= slot);
+            if (!homeBetween) {
+                keys[gap] = key;
+                gap = slot;
+            }
+        }
+        keys[gap] = EMPTY;
+    }
+
+    private int slotFor(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = mKeys;
+        allocate(newCapacity);
+
+        long[] keys = mKeys;
+        for (long key : oldKeys) {
+            if (key != EMPTY) {
+                int slot = slotFor(key);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mMask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mMask = capacity - 1;
+        // Keep the load factor at or below 0.75
+        mResizeThreshold = capacity - (capacity >>> 2);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity - (capacity >>> 2) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
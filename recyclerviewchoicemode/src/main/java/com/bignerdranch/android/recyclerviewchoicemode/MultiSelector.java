@@ -1,15 +1,50 @@
 package com.bignerdranch.android.recyclerviewchoicemode;
 
-import android.util.SparseBooleanArray;
+import android.os.Bundle;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class MultiSelector {
-    private SparseBooleanArray mSelections = new SparseBooleanArray();
-    private WeakHolderTracker mTracker = new WeakHolderTracker();
+    private static final String TAG = "MultiSelector";
+
+    private static final String SELECTION_RUNS_KEY = "selection_runs";
+    private static final String SELECTED_IDS_KEY = "selected_ids";
+    private static final String SELECTABLE_KEY = "selectable";
+    private static final String HAS_STABLE_IDS_KEY = "has_stable_ids";
+
+    /**
+     * Saved selections are dropped rather than risk overflowing the
+     * binder transaction limit. 16k ids is 128K of longs; 16k runs is 128K of ints.
+     */
+    private static final int MAX_SAVED_IDS = 16 * 1024;
+    private static final int MAX_SAVED_RUNS = 16 * 1024;
+
+    /**
+     * Receives selected positions one at a time, without boxing.
+     */
+    public interface PositionVisitor {
+        void visitPosition(int position);
+    }
+
+    /**
+     * Receives selected stable ids one at a time, without boxing.
+     */
+    public interface IdVisitor {
+        void visitId(long id);
+    }
+
+    private IntervalSet mSelections = new IntervalSet();
+    private LongHashSet mSelectedIds = new LongHashSet();
+    private AttachedHolderTracker mTracker = new AttachedHolderTracker();
 
     private boolean mIsSelectable;
+    private boolean mHasStableIds;
+
+    private int mBatchDepth;
+    private boolean mRefreshAllPending;
+    private IntervalSet mDirtyPositions = new IntervalSet();
 
     public void setSelectable(boolean isSelectable) {
         mIsSelectable = isSelectable;
@@ -20,9 +55,114 @@ public class MultiSelector {
         return mIsSelectable;
     }
 
+    /**
+     * Switches between keying selections by adapter position (the default)
+     * and keying them by stable item id.
+     *
+     * When keyed by id, selections follow their items through
+     * notifyItemInserted and notifyItemRemoved instead of staying
+     * on the old positions. Your adapter must report stable ids
+     * (see {@link android.support.v7.widget.RecyclerView.Adapter#setHasStableIds(boolean)}).
+     *
+     * Changing this clears all current selections.
+     *
+     * @param hasStableIds True to key selections by item id.
+     */
+    public void setHasStableIds(boolean hasStableIds) {
+        if (hasStableIds == mHasStableIds) {
+            return;
+        }
+        mHasStableIds = hasStableIds;
+        clearSelections();
+    }
+
+    public boolean hasStableIds() {
+        return mHasStableIds;
+    }
+
+    /**
+     * Starts a batch of selection changes. Until the matching
+     * {@link #endBatch()}, holders are not refreshed as selections change;
+     * instead, the affected positions are collected and each tracked
+     * holder is refreshed at most once when the batch ends.
+     *
+     * Batches may be nested. Holders are refreshed when the outermost
+     * batch ends.
+     */
+    public void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}, refreshing every
+     * tracked holder whose selection state may have changed.
+     */
+    public void endBatch() {
+        if (mBatchDepth == 0) {
+            throw new IllegalStateException("endBatch called without a matching beginBatch");
+        }
+        if (--mBatchDepth > 0) {
+            return;
+        }
+
+        if (mRefreshAllPending) {
+            refreshAllHolders();
+        } else if (mDirtyPositions.size() > 0) {
+            for (int i = 0; i < mTracker.getHolderCount(); i++) {
+                SelectableHolder holder = mTracker.getHolderAt(i);
+                if (mDirtyPositions.contains(holder.getPosition())) {
+                    refreshHolder(holder);
+                }
+            }
+        }
+        mRefreshAllPending = false;
+        mDirtyPositions.clear();
+    }
+
+    public boolean isInBatch() {
+        return mBatchDepth > 0;
+    }
+
+    private void refreshItem(int position, long id) {
+        if (mBatchDepth > 0) {
+            if (mHasStableIds) {
+                // Positions may shift before the batch ends; only ids are reliable
+                mRefreshAllPending = true;
+                mDirtyPositions.clear();
+            } else if (!mRefreshAllPending) {
+                mDirtyPositions.add(position, position + 1);
+            }
+        } else if (mHasStableIds) {
+            refreshHolder(mTracker.getHolderForId(id));
+        } else {
+            refreshHolder(mTracker.getHolder(position));
+        }
+    }
+
+    private void refreshRange(int start, int end) {
+        if (mBatchDepth > 0) {
+            if (!mRefreshAllPending) {
+                mDirtyPositions.add(start, end);
+            }
+            return;
+        }
+        for (int i = 0; i < mTracker.getHolderCount(); i++) {
+            SelectableHolder holder = mTracker.getHolderAt(i);
+            int position = holder.getPosition();
+            if (start <= position && position < end) {
+                refreshHolder(holder);
+            }
+        }
+    }
+
     private void refreshAllHolders() {
-        for (SelectableHolder holder : mTracker.getTrackedHolders()) {
-            refreshHolder(holder);
+        if (mBatchDepth > 0) {
+            mRefreshAllPending = true;
+            mDirtyPositions.clear();
+            return;
+        }
+        for (int i = 0; i < mTracker.getHolderCount(); i++) {
+            refreshHolder(mTracker.getHolderAt(i));
         }
     }
 
@@ -32,41 +172,301 @@ public class MultiSelector {
         }
         holder.setSelectable(mIsSelectable);
 
-        boolean isActivated = mSelections.get(holder.getPosition());
+        boolean isActivated = isSelected(holder.getPosition(), holder.getItemId());
         holder.setActivated(isActivated);
     }
 
     public boolean isSelected(int position, long id) {
-        return mSelections.get(position);
+        if (mHasStableIds) {
+            return mSelectedIds.contains(id);
+        }
+        return mSelections.contains(position);
     }
 
     public void setSelected(int position, long id, boolean isSelected) {
-        mSelections.put(position, isSelected);
-        refreshHolder(mTracker.getHolder(position));
+        if (mHasStableIds) {
+            if (isSelected) {
+                mSelectedIds.add(id);
+            } else {
+                mSelectedIds.remove(id);
+            }
+        } else if (isSelected) {
+            mSelections.add(position, position + 1);
+        } else {
+            mSelections.remove(position, position + 1);
+        }
+        refreshItem(position, id);
+    }
+
+    /**
+     * Selects or deselects every position in [start, end) at once.
+     * Storage stays proportional to the number of contiguous runs,
+     * and only tracked holders within the range are refreshed.
+     *
+     * Only available when selections are keyed by position.
+     *
+     * @param start First position, inclusive.
+     * @param end Last position, exclusive.
+     * @param isSelected True to select the range, false to deselect it.
+     * @throws IllegalStateException if selections are keyed by stable id.
+     */
+    public void setSelectedRange(int start, int end, boolean isSelected) {
+        checkKeyedByPosition();
+        if (isSelected) {
+            mSelections.add(start, end);
+        } else {
+            mSelections.remove(start, end);
+        }
+        refreshRange(start, end);
+    }
+
+    /**
+     * Selects every position in [0, itemCount).
+     *
+     * Only available when selections are keyed by position.
+     *
+     * @param itemCount The adapter's item count.
+     * @throws IllegalStateException if selections are keyed by stable id.
+     */
+    public void selectAll(int itemCount) {
+        checkKeyedByPosition();
+        mSelections.clear();
+        mSelections.add(0, itemCount);
+        refreshAllHolders();
+    }
+
+    /**
+     * Flips the selection state of every position in [0, itemCount).
+     *
+     * Only available when selections are keyed by position.
+     *
+     * @param itemCount The adapter's item count.
+     * @throws IllegalStateException if selections are keyed by stable id.
+     */
+    public void invertSelection(int itemCount) {
+        checkKeyedByPosition();
+        mSelections.invert(itemCount);
+        refreshAllHolders();
+    }
+
+    void checkKeyedByPosition() {
+        if (mHasStableIds) {
+            throw new IllegalStateException("Selections are keyed by stable id, not position");
+        }
+    }
+
+    private void checkKeyedById() {
+        if (!mHasStableIds) {
+            throw new IllegalStateException("Selections are keyed by position, not stable id");
+        }
     }
 
     public void clearSelections() {
         mSelections.clear();
+        mSelectedIds.clear();
         refreshAllHolders();
     }
 
+    /**
+     * @return The number of selected items.
+     */
+    public int getSelectedCount() {
+        if (mHasStableIds) {
+            return mSelectedIds.size();
+        }
+        return mSelections.size();
+    }
+
+    /**
+     * Copies selected positions into out in ascending order, without
+     * allocating. If out is too small, only the first out.length
+     * positions are copied.
+     *
+     * Only available when selections are keyed by position.
+     *
+     * @param out Destination array; see {@link #getSelectedCount()} to size it.
+     * @return The number of positions copied.
+     * @throws IllegalStateException if selections are keyed by stable id.
+     */
+    public int getSelectedPositions(int[] out) {
+        checkKeyedByPosition();
+        int count = 0;
+        for (int run = 0; run < mSelections.getRunCount(); run++) {
+            for (int i = mSelections.runStart(run); i < mSelections.runEnd(run); i++) {
+                if (count == out.length) {
+                    return count;
+                }
+                out[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies selected stable ids into out, in no particular order, without
+     * allocating. If out is too small, only out.length ids are copied.
+     *
+     * Only available when selections are keyed by stable id.
+     *
+     * @param out Destination array; see {@link #getSelectedCount()} to size it.
+     * @return The number of ids copied.
+     * @throws IllegalStateException if selections are keyed by position.
+     */
+    public int getSelectedIds(long[] out) {
+        checkKeyedById();
+        return mSelectedIds.copyInto(out);
+    }
+
+    /**
+     * Visits every selected position in ascending order. Selections
+     * must not be changed while visiting.
+     *
+     * Only available when selections are keyed by position.
+     *
+     * @throws IllegalStateException if selections are keyed by stable id.
+     */
+    public void forEachSelectedPosition(PositionVisitor visitor) {
+        checkKeyedByPosition();
+        for (int run = 0; run < mSelections.getRunCount(); run++) {
+            for (int i = mSelections.runStart(run); i < mSelections.runEnd(run); i++) {
+                visitor.visitPosition(i);
+            }
+        }
+    }
+
+    /**
+     * Visits every selected stable id, in no particular order. Selections
+     * must not be changed while visiting.
+     *
+     * Only available when selections are keyed by stable id.
+     *
+     * @throws IllegalStateException if selections are keyed by position.
+     */
+    public void forEachSelectedId(IdVisitor visitor) {
+        checkKeyedById();
+        mSelectedIds.forEach(visitor);
+    }
+
+    /**
+     * Returns the selected positions. Only available when selections
+     * are keyed by position; use {@link #getSelectedIds(long[])} when
+     * keyed by stable id.
+     *
+     * This boxes every position into a new list. Prefer
+     * {@link #getSelectedPositions(int[])} or
+     * {@link #forEachSelectedPosition(PositionVisitor)} on hot paths.
+     *
+     * @return A list of selected positions.
+     * @throws IllegalStateException if selections are keyed by stable id.
+     */
     public List<Integer> getSelectedPositions() {
+        checkKeyedByPosition();
         List<Integer> positions = new ArrayList<Integer>();
 
-        for (int i = 0; i < mSelections.size(); i++) {
-            if (mSelections.valueAt(i)) {
-                positions.add(mSelections.keyAt(i));
+        for (int run = 0; run < mSelections.getRunCount(); run++) {
+            for (int i = mSelections.runStart(run); i < mSelections.runEnd(run); i++) {
+                positions.add(i);
             }
         }
 
         return positions;
     }
 
+    /**
+     * Saves selections, selection mode and the keying mode into a Bundle,
+     * e.g. to put into onSaveInstanceState.
+     *
+     * Position-keyed selections are saved as packed runs, so even
+     * selecting everything in a huge list stays tiny. Id-keyed selections
+     * are saved as a packed long array. If either would exceed a safe
+     * size for a saved instance state, the selections are not saved, and
+     * neither is selection mode, so a restore doesn't bring back
+     * selection mode with nothing selected.
+     *
+     * @return A Bundle to later pass to {@link #restoreSelectionStates(Bundle)}.
+     */
+    public Bundle saveSelectionStates() {
+        Bundle state = new Bundle();
+        state.putBoolean(HAS_STABLE_IDS_KEY, mHasStableIds);
+
+        boolean saved = true;
+        if (mHasStableIds) {
+            if (mSelectedIds.size() <= MAX_SAVED_IDS) {
+                state.putLongArray(SELECTED_IDS_KEY, mSelectedIds.toArray());
+            } else {
+                Log.w(TAG, "Not saving " + mSelectedIds.size() + " selected ids; too many");
+                saved = false;
+            }
+        } else {
+            if (mSelections.getRunCount() <= MAX_SAVED_RUNS) {
+                state.putIntArray(SELECTION_RUNS_KEY, mSelections.getRuns());
+            } else {
+                Log.w(TAG, "Not saving " + mSelections.getRunCount() + " selection runs; too many");
+                saved = false;
+            }
+        }
+        state.putBoolean(SELECTABLE_KEY, mIsSelectable && saved);
+
+        return state;
+    }
+
+    /**
+     * Restores state saved with {@link #saveSelectionStates()}, replacing
+     * any current selections and refreshing tracked holders.
+     *
+     * @param savedStates A Bundle from {@link #saveSelectionStates()}. May be null.
+     */
+    public void restoreSelectionStates(Bundle savedStates) {
+        if (savedStates == null) {
+            return;
+        }
+
+        beginBatch();
+        setHasStableIds(savedStates.getBoolean(HAS_STABLE_IDS_KEY));
+        clearSelections();
+
+        int[] runs = savedStates.getIntArray(SELECTION_RUNS_KEY);
+        if (runs != null) {
+            mSelections.setRuns(runs);
+        }
+        long[] ids = savedStates.getLongArray(SELECTED_IDS_KEY);
+        if (ids != null) {
+            mSelectedIds = new LongHashSet(ids.length);
+            for (long id : ids) {
+                mSelectedIds.add(id);
+            }
+        }
+
+        setSelectable(savedStates.getBoolean(SELECTABLE_KEY));
+        endBatch();
+    }
+
     public void bindHolder(SelectableHolder holder, int position, long id) {
-        mTracker.bindHolder(holder, position);
         refreshHolder(holder);
     }
 
+    /**
+     * Starts tracking a holder whose item view has been attached to a window,
+     * so that selection changes are reflected on it. Holders extending
+     * {@link MultiSelectorBindingHolder} call this automatically.
+     *
+     * @param holder The attached holder.
+     */
+    public void attachHolder(SelectableHolder holder) {
+        mTracker.attachHolder(holder);
+        refreshHolder(holder);
+    }
+
+    /**
+     * Stops tracking a holder whose item view has been detached from its window.
+     * Holders extending {@link MultiSelectorBindingHolder} call this automatically.
+     *
+     * @param holder The detached holder.
+     */
+    public void detachHolder(SelectableHolder holder) {
+        mTracker.detachHolder(holder);
+    }
+
     public void setSelected(SelectableHolder holder, boolean isSelected) {
         setSelected(holder.getPosition(), holder.getItemId(), isSelected);
     }
@@ -10,10 +10,26 @@ public abstract class MultiSelectorBindingHolder extends RebindReportingHolder i
     public MultiSelectorBindingHolder(View itemView, MultiSelector multiSelector) {
         super(itemView);
         mMultiSelector = multiSelector;
+
+        if (mMultiSelector != null) {
+            itemView.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(View v) {
+                    mMultiSelector.attachHolder(MultiSelectorBindingHolder.this);
+                }
+
+                @Override
+                public void onViewDetachedFromWindow(View v) {
+                    mMultiSelector.detachHolder(MultiSelectorBindingHolder.this);
+                }
+            });
+        }
     }
 
     @Override
     protected void onRebind() {
-        mMultiSelector.bindHolder(this, getPosition(), getItemId());
+        if (mMultiSelector != null) {
+            mMultiSelector.bindHolder(this, getPosition(), getItemId());
+        }
     }
 }
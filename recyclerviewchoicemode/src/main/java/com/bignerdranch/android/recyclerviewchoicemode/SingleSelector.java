@@ -1,15 +1,79 @@
 package com.bignerdranch.android.recyclerviewchoicemode;
 
+import android.os.Bundle;
+
 public class SingleSelector extends MultiSelector {
+    private boolean mHasSelection;
+    private int mSelectedPosition;
+    private long mSelectedId;
+
     @Override
     public void setSelected(int position, long id, boolean isSelected) {
         if (isSelected) {
-            for (Integer selectedPosition : getSelectedPositions()) {
-                if (selectedPosition != position) {
-                    super.setSelected(selectedPosition, 0, false);
-                }
+            if (mHasSelection && !isSelectedItem(position, id)) {
+                super.setSelected(mSelectedPosition, mSelectedId, false);
             }
+            mHasSelection = true;
+            mSelectedPosition = position;
+            mSelectedId = id;
+        } else if (mHasSelection && isSelectedItem(position, id)) {
+            mHasSelection = false;
         }
         super.setSelected(position, id, isSelected);
     }
+
+    @Override
+    public void setSelectedRange(int start, int end, boolean isSelected) {
+        // before touching any state, so a misuse leaves the selection as it was
+        checkKeyedByPosition();
+        if (isSelected && end - start == 1) {
+            setSelected(start, 0, true);
+        } else if (isSelected && end > start) {
+            throw new UnsupportedOperationException("SingleSelector can only select one item");
+        } else {
+            if (mHasSelection && start <= mSelectedPosition && mSelectedPosition < end) {
+                mHasSelection = false;
+            }
+            super.setSelectedRange(start, end, isSelected);
+        }
+    }
+
+    @Override
+    public void selectAll(int itemCount) {
+        throw new UnsupportedOperationException("SingleSelector can only select one item");
+    }
+
+    @Override
+    public void invertSelection(int itemCount) {
+        throw new UnsupportedOperationException("SingleSelector can only select one item");
+    }
+
+    @Override
+    public void clearSelections() {
+        mHasSelection = false;
+        super.clearSelections();
+    }
+
+    @Override
+    public void restoreSelectionStates(Bundle savedStates) {
+        super.restoreSelectionStates(savedStates);
+
+        mHasSelection = getSelectedCount() > 0;
+        if (!mHasSelection) {
+            return;
+        }
+        if (hasStableIds()) {
+            long[] id = new long[1];
+            getSelectedIds(id);
+            mSelectedId = id[0];
+        } else {
+            int[] position = new int[1];
+            getSelectedPositions(position);
+            mSelectedPosition = position[0];
+        }
+    }
+
+    private boolean isSelectedItem(int position, long id) {
+        return hasStableIds() ? id == mSelectedId : position == mSelectedPosition;
+    }
 }